@@ -0,0 +1,95 @@
+package org.allenai.scienceparse;
+
+import com.gs.collections.api.map.primitive.ObjectDoubleMap;
+import org.allenai.scienceparse.pdfapi.PDFDoc;
+import org.allenai.scienceparse.pdfapi.PDFExtractor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Benchmarks for the stages that turn a PDF into CRF input. Only nodePredicates needs a model.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class ExtractionBenchmark {
+  @State(Scope.Benchmark)
+  public static class PredicateExtractorState {
+    public PDFPredicateExtractor predExtractor;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      try(
+          final DataInputStream modelIs = new DataInputStream(
+              new FileInputStream(Parser.getDefaultProductionModel().toFile()))
+      ) {
+        predExtractor = Parser.loadModelComponents(modelIs).predExtractor;
+      }
+    }
+  }
+
+  /** Roughly the shape of a bracketed citation, to exercise RegexWithTimeout on real text */
+  private static final Pattern citationPattern =
+      Pattern.compile("\\[([0-9]+(\\p{Pd}[0-9]+)?(, ?[0-9]+(\\p{Pd}[0-9]+)?)*)\\]");
+
+  @Benchmark
+  public PDFDoc extractFromInputStream(final PaperState state) {
+    return new PDFExtractor().extractFromInputStream(state.pdfInputStream());
+  }
+
+  @Benchmark
+  public List<PaperToken> getSequence(final PaperState state) {
+    return PDFToCRFInput.getSequence(state.doc);
+  }
+
+  @Benchmark
+  public List<ObjectDoubleMap<String>> nodePredicates(
+      final PaperState state,
+      final PredicateExtractorState predicates
+  ) {
+    return predicates.predExtractor.nodePredicates(state.headerSequence);
+  }
+
+  private static int countMatches(final Matcher m) {
+    int count = 0;
+    while(m.find())
+      count += 1;
+    return count;
+  }
+
+  @Benchmark
+  public int regexWithTimeout(final PaperState state) {
+    int count = 0;
+    for(final String line : state.rawLines)
+      count += countMatches(RegexWithTimeout.matcher(citationPattern, line));
+    return count;
+  }
+
+  /** The same as regexWithTimeout, but without the timeout, to show what the timeout costs */
+  @Benchmark
+  public int regexWithoutTimeout(final PaperState state) {
+    int count = 0;
+    for(final String line : state.rawLines)
+      count += countMatches(citationPattern.matcher(line));
+    return count;
+  }
+}
@@ -0,0 +1,106 @@
+package org.allenai.scienceparse;
+
+import com.gs.collections.api.tuple.Pair;
+import org.allenai.ml.sequences.crf.CRFModel;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.DataInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Benchmarks for the stages that need the production models, and for the whole parse. The models
+ * come from the datastore, so the first run downloads them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 10)
+@Measurement(iterations = 5, time = 10)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx6g"})
+public class ModelBenchmark {
+  @State(Scope.Benchmark)
+  public static class HeaderModelState {
+    public CRFModel<String, PaperToken, String> model;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+      try(
+          final DataInputStream modelIs = new DataInputStream(
+              new FileInputStream(Parser.getDefaultProductionModel().toFile()))
+      ) {
+        model = Parser.loadModel(modelIs);
+      }
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class ReferencesState {
+    public ExtractReferences referenceExtractor;
+    public List<BibRecord> references;
+    public ExtractReferences.BibStractor bibStractor;
+
+    @Setup(Level.Trial)
+    public void setup(final PaperState paper) throws IOException {
+      referenceExtractor = new ExtractReferences(
+          Parser.getDefaultGazetteer().toString(),
+          Parser.getDefaultBibModel().toString());
+
+      final Pair<List<BibRecord>, ExtractReferences.BibStractor> fnd =
+          referenceExtractor.findReferences(paper.rawReferences);
+      references =
+          fnd.getOne().stream().map(BibRecord::withNormalizedAuthors).collect(Collectors.toList());
+      bibStractor = fnd.getTwo();
+    }
+  }
+
+  @State(Scope.Benchmark)
+  public static class ParserState {
+    public Parser parser;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception {
+      parser = Parser.getInstance();
+    }
+  }
+
+  @Benchmark
+  public List<String> bestGuess(final PaperState paper, final HeaderModelState state) {
+    return state.model.bestGuess(paper.headerSequence);
+  }
+
+  @Benchmark
+  public Pair<List<BibRecord>, ExtractReferences.BibStractor> findReferences(
+      final PaperState paper,
+      final ReferencesState state
+  ) {
+    return state.referenceExtractor.findReferences(paper.rawReferences);
+  }
+
+  @Benchmark
+  public List<CitationRecord> findCitations(final PaperState paper, final ReferencesState state) {
+    // findCitations modifies the lines it gets, so it gets a copy.
+    return ExtractReferences.findCitations(
+        new ArrayList<>(paper.rawLines),
+        state.references,
+        state.bibStractor);
+  }
+
+  @Benchmark
+  public ExtractedMetadata doParse(final PaperState paper, final ParserState state) throws IOException {
+    return state.parser.doParse(paper.pdfInputStream());
+  }
+}
@@ -0,0 +1,52 @@
+package org.allenai.scienceparse;
+
+import org.allenai.scienceparse.pdfapi.PDFDoc;
+import org.allenai.scienceparse.pdfapi.PDFExtractor;
+import org.apache.commons.io.IOUtils;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+/**
+ * One of the test papers from core, together with the output of each stage of the pipeline, so
+ * that every benchmark can start from the input of the stage it measures.
+ */
+@State(Scope.Benchmark)
+public class PaperState {
+  @Param({"P07-1088", "P14-1059", "agarwal11", "bagnell11", "map-reduce"})
+  public String paper;
+
+  public byte[] pdfBytes;
+  public PDFDoc doc;
+  public List<PaperToken> headerSequence;
+  public List<String> rawLines;
+  public List<String> rawReferences;
+
+  @Setup(Level.Trial)
+  public void setup() throws IOException {
+    try(final InputStream is = PaperState.class.getResourceAsStream("/" + paper + ".pdf")) {
+      if(is == null)
+        throw new IOException("Could not find test paper " + paper);
+      pdfBytes = IOUtils.toByteArray(is);
+    }
+
+    // Same steps as Parser.doParse()
+    doc = new PDFExtractor().extractFromInputStream(new ByteArrayInputStream(pdfBytes)).withoutSuperscripts();
+    List<PaperToken> seq = PDFToCRFInput.getSequence(doc);
+    seq = seq.subList(0, Math.min(seq.size(), Parser.MAXHEADERWORDS));
+    headerSequence = PDFToCRFInput.padSequence(seq);
+    rawLines = PDFDocToPartitionedText.getRaw(doc);
+    rawReferences = PDFDocToPartitionedText.getRawReferences(doc);
+  }
+
+  public ByteArrayInputStream pdfInputStream() {
+    return new ByteArrayInputStream(pdfBytes);
+  }
+}
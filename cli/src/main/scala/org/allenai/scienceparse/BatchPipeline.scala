@@ -0,0 +1,125 @@
+package org.allenai.scienceparse
+
+import java.util.concurrent.ArrayBlockingQueue
+import java.util.concurrent.atomic.{ AtomicInteger, AtomicReference }
+
+import org.allenai.common.Logging
+
+import scala.util.control.NonFatal
+
+/** Runs a batch job in three stages, connected by bounded queues:
+  *
+  * 1. fetch: gets the input, usually from disk or the network. Runs on fetchThreads threads.
+  * 2. process: does the CPU-heavy work. Runs on processThreads threads.
+  * 3. write: writes the results. Runs on a single thread, so it needs no locking.
+  *
+  * Each stage has its own threads, so slow fetches don't idle the processing threads. Because the
+  * queues are bounded, at most 2 * queueSize items are in memory at any time, plus the ones that
+  * are being worked on.
+  *
+  * Fetch and process return None for items that should be skipped. They are expected to log
+  * their own failures. If write fails, or any stage hits a fatal error, the pipeline stops
+  * fetching, and run() throws the failure once the items already in flight have drained.
+  */
+class BatchPipeline[I, F, P](
+  fetchThreads: Int,
+  processThreads: Int,
+  queueSize: Int
+)(
+  fetch: I => Option[F],
+  process: F => Option[P],
+  write: P => Unit
+) extends Logging {
+  require(fetchThreads > 0 && processThreads > 0 && queueSize > 0)
+
+  def run(inputs: Iterator[I]): Unit = {
+    // None marks the end of a queue.
+    val fetched = new ArrayBlockingQueue[Option[F]](queueSize)
+    val processed = new ArrayBlockingQueue[Option[P]](queueSize)
+    val failure = new AtomicReference[Throwable]()
+
+    def fail(message: String, e: Throwable): Unit = {
+      logger.error(s"$message. Stopping.", e)
+      failure.compareAndSet(null, e)
+    }
+
+    def nextInput(): Option[I] = inputs.synchronized {
+      if (failure.get == null && inputs.hasNext) Some(inputs.next()) else None
+    }
+
+    def thread(name: String)(body: => Unit): Thread = {
+      val t = new Thread(new Runnable {
+        override def run(): Unit = body
+      }, name)
+      t.start()
+      t
+    }
+
+    val fetchersRunning = new AtomicInteger(fetchThreads)
+    val fetchers = (1 to fetchThreads).map { i =>
+      thread(s"BatchPipeline-fetch-$i") {
+        try {
+          var input = nextInput()
+          while (input.isDefined) {
+            try {
+              fetch(input.get).foreach(f => fetched.put(Some(f)))
+            } catch {
+              case NonFatal(e) => logger.warn(s"Fetching ${input.get} failed", e)
+              case e: Throwable => fail(s"Fetching ${input.get} failed", e)
+            }
+            input = nextInput()
+          }
+        } finally {
+          // The last fetcher tells all processors to stop.
+          if (fetchersRunning.decrementAndGet() == 0)
+            (1 to processThreads).foreach(_ => fetched.put(None))
+        }
+      }
+    }
+
+    val processorsRunning = new AtomicInteger(processThreads)
+    val processors = (1 to processThreads).map { i =>
+      thread(s"BatchPipeline-process-$i") {
+        try {
+          var item = fetched.take()
+          while (item.isDefined) {
+            // After a failure, we only drain the queue, so the fetchers don't block forever.
+            if (failure.get == null) {
+              try {
+                process(item.get).foreach(p => processed.put(Some(p)))
+              } catch {
+                case NonFatal(e) => logger.warn("Processing failed", e)
+                case e: Throwable => fail("Processing failed", e)
+              }
+            }
+            item = fetched.take()
+          }
+        } finally {
+          if (processorsRunning.decrementAndGet() == 0)
+            processed.put(None)
+        }
+      }
+    }
+
+    val writer = thread("BatchPipeline-write") {
+      var item = processed.take()
+      while (item.isDefined) {
+        // After a failure, we keep draining the queue, so the other stages don't block forever.
+        if (failure.get == null) {
+          try {
+            write(item.get)
+          } catch {
+            case e: Throwable => fail("Writing failed", e)
+          }
+        }
+        item = processed.take()
+      }
+    }
+
+    fetchers.foreach(_.join())
+    processors.foreach(_.join())
+    writer.join()
+
+    Option(failure.get).foreach(e => throw e)
+  }
+}
@@ -0,0 +1,261 @@
+package org.allenai.scienceparse
+
+import java.io._
+import java.lang.management.{ ManagementFactory, MemoryType }
+import java.nio.file.Files
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{ Callable, Executors, TimeUnit }
+
+import ch.qos.logback.classic.Level
+import org.allenai.common.Logging
+import org.slf4j.Logger
+import scopt.OptionParser
+import spray.json._
+
+import scala.collection.JavaConverters._
+import scala.io.Source
+import scala.util.control.NonFatal
+
+/** Parses a directory of PDFs at several fixed levels of concurrency, and reports throughput,
+  * latency, timeouts, memory, and GC time for each level. Use it to compare builds, or to pick
+  * the size of a machine.
+  */
+object BenchmarkSP extends Logging {
+  /** What happened to one document */
+  private case class Outcome(latencyNanos: Long, error: Boolean)
+
+  private case class GcTotals(collections: Long, millis: Long) {
+    def -(other: GcTotals) = GcTotals(collections - other.collections, millis - other.millis)
+  }
+
+  private def gcTotals: GcTotals = {
+    val gcs = ManagementFactory.getGarbageCollectorMXBeans.asScala
+    GcTotals(gcs.map(_.getCollectionCount.max(0)).sum, gcs.map(_.getCollectionTime.max(0)).sum)
+  }
+
+  private def heapPools = ManagementFactory.getMemoryPoolMXBeans.asScala.filter(_.getType == MemoryType.HEAP)
+
+  /** The most memory the process ever had resident, if the OS tells us */
+  private def peakRssBytes: Option[Long] = {
+    val status = new File("/proc/self/status")
+    if (!status.exists()) {
+      None
+    } else {
+      val source = Source.fromFile(status, "UTF-8")
+      try {
+        source.getLines().find(_.startsWith("VmHWM:")).map { line =>
+          line.split("\\s+")(1).toLong * 1024 // in kB
+        }
+      } catch {
+        case NonFatal(_) => None
+      } finally {
+        source.close()
+      }
+    }
+  }
+
+  /** Nearest-rank percentile of sorted values */
+  private def percentile(sorted: Array[Long], p: Double): Long =
+    if (sorted.isEmpty) 0 else sorted(math.max(0, math.ceil(p / 100.0 * sorted.length).toInt - 1))
+
+  def main(args: Array[String]): Unit = {
+    case class Config(
+      modelFile: Option[File] = None,
+      bibModelFile: Option[File] = None,
+      gazetteerFile: Option[File] = None,
+      paperDirectory: File = null,
+      threads: Seq[Int] = Seq(Runtime.getRuntime.availableProcessors()),
+      warmupDocuments: Int = 20,
+      maxDocuments: Option[Int] = None,
+      timeout: Int = 60000,
+      reportFile: Option[File] = None
+    )
+
+    val parser = new OptionParser[Config](this.getClass.getSimpleName) {
+      opt[File]('m', "model") action { (m, c) =>
+        c.copy(modelFile = Some(m))
+      } text "Specifies the model file to evaluate. Defaults to the production model"
+
+      opt[File]('b', "bibModel") action { (m, c) =>
+        c.copy(bibModelFile = Some(m))
+      } text "Specifies the model for bibliography parsing. Defaults to the production model"
+
+      opt[File]('g', "gazetteer") action { (g, c) =>
+        c.copy(gazetteerFile = Some(g))
+      } text "Specifies the gazetteer file. Defaults to the production one."
+
+      opt[Seq[Int]]('t', "threads") action { (t, c) =>
+        c.copy(threads = t)
+      } text "Comma-separated levels of concurrency to measure. Defaults to the number of cores."
+
+      opt[Int]("warmup") action { (w, c) =>
+        c.copy(warmupDocuments = w)
+      } text "Number of documents to parse before measuring anything. Defaults to 20."
+
+      opt[Int]("maxDocuments") action { (m, c) =>
+        c.copy(maxDocuments = Some(m))
+      } text "Use only this many documents from the directory. All documents are held in memory."
+
+      opt[Int]("timeout") action { (t, c) =>
+        c.copy(timeout = t)
+      } text "Timeout for a single document, in milliseconds. Defaults to 60000."
+
+      opt[File]('r', "report") action { (r, c) =>
+        c.copy(reportFile = Some(r))
+      } text "Writes a JSON report to this file. Without this, the report goes to stdout."
+
+      arg[File]("<directory>") required () action { (d, c) =>
+        c.copy(paperDirectory = d)
+      } text "Directory with the PDFs to parse"
+
+      checkConfig { c =>
+        if (c.threads.exists(_ < 1)) failure("Thread counts must be positive") else success
+      }
+
+      help("help") text "Prints help text"
+    }
+
+    parser.parse(args, Config()).foreach { config =>
+      val modelFile = config.modelFile.map(_.toPath).getOrElse(Parser.getDefaultProductionModel)
+      val bibModelFile = config.bibModelFile.map(_.toPath).getOrElse(Parser.getDefaultBibModel)
+      val gazetteerFile = config.gazetteerFile.map(_.toPath).getOrElse(Parser.getDefaultGazetteer)
+
+      loggerConfig.Logger("org.apache.pdfbox").setLevel(Level.OFF)
+      loggerConfig.Logger("org.apache.fontbox").setLevel(Level.OFF)
+      loggerConfig.Logger("org.allenai.pdfbox").setLevel(Level.OFF)
+      loggerConfig.Logger("org.allenai.fontbox").setLevel(Level.OFF)
+      loggerConfig.Logger("org.allenai.pdffigures2.TextExtractor").setLevel(Level.ERROR)
+      loggerConfig.Logger(Logger.ROOT_LOGGER_NAME).setLevel(Level.INFO)
+      loggerConfig.Logger("org.allenai.scienceparse.Parser").setLevel(Level.ERROR)
+
+      // Read all documents up front, so we measure parsing, not disk access.
+      def listFiles(dir: File): Iterator[File] = dir.listFiles.iterator.flatMap {
+        case d if d.isDirectory => listFiles(d)
+        case f if f.isFile && f.getName.endsWith(".pdf") => Iterator(f)
+        case _ => Iterator.empty
+      }
+      val files = listFiles(config.paperDirectory).toVector.sortBy(_.getPath)
+      val documents = config.maxDocuments.fold(files)(files.take).map { f =>
+        Files.readAllBytes(f.toPath)
+      }
+      require(documents.nonEmpty, s"Found no PDFs in ${config.paperDirectory}")
+      logger.info(s"Read ${documents.size} documents")
+
+      val sp = new Parser(modelFile, gazetteerFile, bibModelFile)
+      val timeouts = new AtomicInteger()
+      val kills = new AtomicInteger()
+      sp.setListener(new ParseListener {
+        override def parseTimedOut(): Unit = timeouts.incrementAndGet()
+        override def parseKilled(): Unit = kills.incrementAndGet()
+      })
+
+      /** Parses the documents on a pool of the given size, returning the outcomes in order */
+      def parseAll(docs: Seq[Array[Byte]], threads: Int): Seq[Outcome] = {
+        val pool = Executors.newFixedThreadPool(threads)
+        try {
+          val futures = docs.map { bytes =>
+            pool.submit(new Callable[Outcome] {
+              override def call(): Outcome = {
+                val start = System.nanoTime()
+                val error = try {
+                  sp.doParseWithTimeout(new ByteArrayInputStream(bytes), config.timeout)
+                  false
+                } catch {
+                  case NonFatal(e) =>
+                    logger.debug("Parse failed", e)
+                    true
+                }
+                Outcome(System.nanoTime() - start, error)
+              }
+            })
+          }
+          futures.map(_.get())
+        } finally {
+          pool.shutdown()
+          pool.awaitTermination(1, TimeUnit.MINUTES)
+        }
+      }
+
+      if (config.warmupDocuments > 0) {
+        logger.info(s"Warming up with ${config.warmupDocuments} documents")
+        val warmupDocs = Iterator.continually(documents).flatten.take(config.warmupDocuments).toSeq
+        parseAll(warmupDocs, config.threads.max)
+      }
+
+      val levels = config.threads.map { threads =>
+        logger.info(s"Measuring with $threads threads")
+        System.gc()
+        heapPools.foreach(_.resetPeakUsage())
+        timeouts.set(0)
+        kills.set(0)
+        val gcBefore = gcTotals
+
+        val start = System.nanoTime()
+        val outcomes = parseAll(documents, threads)
+        val wallNanos = System.nanoTime() - start
+
+        val gc = gcTotals - gcBefore
+        val peakHeap = heapPools.map(_.getPeakUsage.getUsed).sum
+        val latencies = outcomes.map(_.latencyNanos / 1000000).toArray.sorted
+        val wallSeconds = wallNanos / 1e9
+
+        val level = JsObject(
+          "threads" -> JsNumber(threads),
+          "documents" -> JsNumber(outcomes.size),
+          "wallSeconds" -> JsNumber(wallSeconds),
+          "docsPerSecond" -> JsNumber(outcomes.size / wallSeconds),
+          "latencyMs" -> JsObject(
+            "mean" -> JsNumber(latencies.sum.toDouble / latencies.length),
+            "p50" -> JsNumber(percentile(latencies, 50)),
+            "p95" -> JsNumber(percentile(latencies, 95)),
+            "p99" -> JsNumber(percentile(latencies, 99)),
+            "max" -> JsNumber(latencies.last)
+          ),
+          "timeouts" -> JsNumber(timeouts.get),
+          "timeoutRate" -> JsNumber(timeouts.get.toDouble / outcomes.size),
+          "kills" -> JsNumber(kills.get),
+          "errors" -> JsNumber(outcomes.count(_.error)),
+          "peakHeapBytes" -> JsNumber(peakHeap),
+          // This is the high-water mark for the whole process, not just this level.
+          "peakRssBytes" -> peakRssBytes.map(JsNumber(_)).getOrElse(JsNull),
+          "gc" -> JsObject(
+            "collections" -> JsNumber(gc.collections),
+            "seconds" -> JsNumber(gc.millis / 1000.0)
+          )
+        )
+
+        logger.info(
+          f"$threads threads: ${outcomes.size / wallSeconds}%.2f docs/s, " +
+            s"p50 ${percentile(latencies, 50)}ms, p99 ${percentile(latencies, 99)}ms, " +
+            s"${timeouts.get} timeouts, ${kills.get} kills, ${outcomes.count(_.error)} errors")
+        level
+      }
+
+      val runtime = ManagementFactory.getRuntimeMXBean
+      val report = JsObject(
+        "corpus" -> JsObject(
+          "directory" -> JsString(config.paperDirectory.getPath),
+          "documents" -> JsNumber(documents.size),
+          "bytes" -> JsNumber(documents.map(_.length.toLong).sum)
+        ),
+        "jvm" -> JsObject(
+          "vmName" -> JsString(runtime.getVmName),
+          "vmVersion" -> JsString(runtime.getVmVersion),
+          "availableProcessors" -> JsNumber(Runtime.getRuntime.availableProcessors()),
+          "maxHeapBytes" -> JsNumber(Runtime.getRuntime.maxMemory())
+        ),
+        "timeoutMs" -> JsNumber(config.timeout),
+        "warmupDocuments" -> JsNumber(config.warmupDocuments),
+        "levels" -> JsArray(levels.toVector)
+      ).prettyPrint
+
+      config.reportFile match {
+        case Some(file) =>
+          Files.write(file.toPath, report.getBytes("UTF-8"))
+          logger.info(s"Wrote report to $file")
+        case None =>
+          println(report)
+      }
+    }
+  }
+}
@@ -0,0 +1,80 @@
+package org.allenai.scienceparse
+
+import java.io._
+import java.nio.charset.StandardCharsets
+
+import com.google.common.hash.Hashing
+import com.gs.collections.impl.set.mutable.primitive.LongHashSet
+import org.allenai.common.{ Logging, Resource }
+
+/** Remembers which documents a batch run has finished, so that an interrupted run can resume
+  * where it left off.
+  *
+  * The file is an append-only log of 64-bit hashes of document names, eight bytes per document.
+  * Ten million documents take 80MB on disk, and load in seconds. With 64-bit hashes, the chance
+  * that two names in a run of that size collide is about one in 400,000.
+  *
+  * Record a document only after its output is safely written. If the process dies in between, the
+  * document is parsed again when the run resumes.
+  */
+class Checkpoint(file: File) extends Closeable with Logging {
+  import Checkpoint._
+
+  private val done = new LongHashSet()
+
+  private val out = {
+    if (file.exists()) {
+      // A crash in the middle of a write can leave a partial hash at the end. We drop it.
+      val completeLength = file.length() - file.length() % 8
+      Resource.using(new RandomAccessFile(file, "rw"))(_.setLength(completeLength))
+
+      Resource.using(new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) { in =>
+        var i = 0L
+        while (i < completeLength) {
+          done.add(in.readLong())
+          i += 8
+        }
+      }
+      logger.info(s"Loaded ${done.size} finished documents from $file")
+    }
+    new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)))
+  }
+
+  def size: Int = synchronized { done.size }
+
+  def contains(name: String): Boolean = synchronized { done.contains(hash(name)) }
+
+  def add(name: String): Unit = synchronized {
+    val h = hash(name)
+    if (done.add(h)) {
+      out.writeLong(h)
+      out.flush()
+    }
+  }
+
+  override def close(): Unit = synchronized { out.close() }
+}
+
+object Checkpoint {
+  def hash(name: String): Long =
+    Hashing.murmur3_128().hashString(name, StandardCharsets.UTF_8).asLong()
+
+  /** The checkpoint that goes with an output file */
+  def fileFor(outputFile: File): File = new File(outputFile.getPath + ".checkpoint")
+
+  /** Splits a run across several machines. Every document belongs to exactly one shard. */
+  case class Shard(index: Int, count: Int) {
+    require(count > 0 && index >= 0 && index < count, s"Invalid shard $index/$count")
+
+    def contains(name: String): Boolean = java.lang.Math.floorMod(hash(name), count.toLong) == index
+  }
+
+  object Shard {
+    private val shardRegex = "^(\\d+)/(\\d+)$".r
+
+    def parse(s: String): Shard = s match {
+      case shardRegex(index, count) => Shard(index.toInt, count.toInt)
+      case _ => throw new IllegalArgumentException(s"Could not understand shard '$s'. Expected i/n.")
+    }
+  }
+}
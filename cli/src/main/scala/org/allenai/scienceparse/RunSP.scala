@@ -2,14 +2,13 @@ package org.allenai.scienceparse
 
 import java.io._
 import java.util.NoSuchElementException
-import java.util.concurrent.atomic.AtomicInteger
 
 import ch.qos.logback.classic.Level
 import com.fasterxml.jackson.databind.ObjectMapper
 import com.fasterxml.jackson.module.scala.DefaultScalaModule
 import com.fasterxml.jackson.module.scala.experimental.ScalaObjectMapper
 import org.allenai.common.{Logging, Resource}
-import org.allenai.common.ParIterator._
+import org.apache.commons.io.IOUtils
 import org.slf4j.Logger
 import scopt.OptionParser
 
@@ -18,14 +17,38 @@ import scala.concurrent.duration._
 import scala.concurrent.{Await, Future}
 import scala.io.Source
 import scala.language.postfixOps
+import scala.util.Try
 import scala.util.control.NonFatal
 
 object RunSP extends Logging {
   case class MetadataWrapper(name: String, metadata: ExtractedMetadata)
 
+  // What goes through the stages of the batch pipeline
+  private case class Input(name: String, open: () => InputStream)
+  private case class Fetched(name: String, bytes: Array[Byte])
+  private case class Parsed(
+    name: String,
+    document: Option[Array[Byte]], // for the output directory or stdout
+    line: Option[Array[Byte]], // for the output file
+    shardRecord: Option[Array[Byte]] // for the output shards, already compressed
+  )
+
   val jsonWriter = new ObjectMapper() with ScalaObjectMapper
   jsonWriter.registerModule(DefaultScalaModule)
-  val prettyJsonWriter = jsonWriter.writerWithDefaultPrettyPrinter()
+
+  /** Writes the wrapper as JSON without building the whole document in memory first. */
+  def writeJson(wrapper: MetadataWrapper, os: OutputStream, pretty: Boolean): Unit = {
+    val gen = JsonStreamWriter.generator(os, pretty)
+    try {
+      gen.writeStartObject()
+      gen.writeStringField("name", wrapper.name)
+      gen.writeFieldName("metadata")
+      JsonStreamWriter.writeExtractedMetadata(gen, wrapper.metadata)
+      gen.writeEndObject()
+    } finally {
+      gen.close()
+    }
+  }
 
   def main(args: Array[String]) = {
     case class Config(
@@ -37,7 +60,21 @@ object RunSP extends Logging {
       outputDir: Option[File] = None,
       outputFile: Option[File] = None,
       useS2Bucket: Boolean = false,
-      quiet: Boolean = false
+      quiet: Boolean = false,
+      pretty: Boolean = false,
+      trace: Boolean = false,
+      fetchThreads: Int = 16,
+      parseThreads: Int = Runtime.getRuntime.availableProcessors(),
+      checkpointFile: Option[File] = None,
+      shard: Option[Checkpoint.Shard] = None,
+      outputShardDir: Option[File] = None,
+      shardDocuments: Int = 100000,
+      shardBytes: Long = 1L << 30,
+      compression: ShardedOutputWriter.Compression = ShardedOutputWriter.Gzip,
+      workers: Option[Int] = None,
+      workerHeap: String = "6g",
+      budget: DocumentBudget = DocumentBudget.DEFAULT,
+      gazetteerFalsePositiveRate: Double = 0
     )
 
     val parser = new OptionParser[Config](this.getClass.getSimpleName) {
@@ -61,10 +98,54 @@ object RunSP extends Logging {
         (f, c) => c.copy(outputFile = Some(f))
       } text "Output file. Writes one line per document."
 
+      opt[File]('s', "outputShards") action {
+        (s, c) => c.copy(outputShardDir = Some(s))
+      } text "Output directory for sharded output. Writes one line per document into shard files, with an index next to each shard."
+
+      opt[Int]("shardDocuments") action {
+        (n, c) => c.copy(shardDocuments = n)
+      } text "Maximum number of documents in one output shard. Defaults to 100000."
+
+      opt[Long]("shardBytes") action {
+        (n, c) => c.copy(shardBytes = n)
+      } text "Maximum size of one output shard in bytes. Defaults to 1GB."
+
+      opt[String]("compression") validate { s =>
+        if (ShardedOutputWriter.compressions.exists(_.name == s)) success else failure(s"Unknown compression '$s'")
+      } action {
+        (s, c) => c.copy(compression = ShardedOutputWriter.compression(s))
+      } text s"Compression for output shards, one of ${ShardedOutputWriter.compressions.map(_.name).mkString(", ")}. Defaults to gzip."
+
+      opt[File]("checkpoint") action {
+        (f, c) => c.copy(checkpointFile = Some(f))
+      } text "Records finished documents in this file, and skips them when the run resumes. Defaults to <outputFile>.checkpoint if there is an output file, or to a file in the output shard directory."
+
+      opt[String]("shard") validate { s =>
+        Try(Checkpoint.Shard.parse(s)).map(_ => success).getOrElse(failure(s"Invalid shard '$s'. Expected i/n, for example 0/4."))
+      } action {
+        (s, c) => c.copy(shard = Some(Checkpoint.Shard.parse(s)))
+      } text "Parses only shard i out of n, given as i/n. Use this to split a run across machines."
+
+      opt[Unit]("pretty") action {
+        (_, c) => c.copy(pretty = true)
+      } text "Pretty-print JSON output. Does not apply to the output file, which always has one line per document."
+
+      opt[Unit]("trace") action {
+        (_, c) => c.copy(trace = true)
+      } text "Adds the time and memory spent in each stage of the parse to the output"
+
       opt[Unit]('q', "quiet") action {
         (_, c) => c.copy(quiet = true)
       } text "Quiet mode, prints only progress reports"
 
+      opt[Int]("fetchThreads") action { (t, c) =>
+        c.copy(fetchThreads = t)
+      } text "Number of threads that read or download papers. Defaults to 16."
+
+      opt[Int]("parseThreads") action { (t, c) =>
+        c.copy(parseThreads = t)
+      } text "Number of threads that parse papers. Defaults to the number of cores."
+
       opt[File]('p', "paperDirectory") action { (p, c) =>
         c.copy(paperDirectory = Some(p))
       } text "Specifies a directory with papers in them. If this is not specified, or a paper can't be found in the directory, we fall back to getting the paper from Semantic Scholar."
@@ -77,6 +158,34 @@ object RunSP extends Logging {
         (f, c) => c.copy(pdfInputs = c.pdfInputs :+ f)
       } text "PDFs you'd like to process"
 
+      opt[Int]("workers") action { (w, c) =>
+        c.copy(workers = Some(w))
+      } text "Parses in this many separate worker processes, so that a bad paper can't crash the whole run. Each worker needs as much memory as RunSP itself. Overrides --parseThreads."
+
+      opt[String]("workerHeap") action { (h, c) =>
+        c.copy(workerHeap = h)
+      } text "Maximum heap of each worker process, as for -Xmx. Defaults to 6g"
+
+      opt[Long]("maxPdfBytes") action { (b, c) =>
+        c.copy(budget = c.budget.toBuilder.maxBytes(b).build())
+      } text "Skips PDFs larger than this. Set to 0 to parse any size. Defaults to 100MB"
+
+      opt[Int]("maxPages") action { (p, c) =>
+        c.copy(budget = c.budget.toBuilder.maxPages(p).build())
+      } text "Skips PDFs with more pages than this. Set to 0 to parse any length. Defaults to 500"
+
+      opt[Long]("pdfMemoryBytes") action { (b, c) =>
+        c.copy(budget = c.budget.toBuilder.maxMainMemoryBytes(b).build())
+      } text "Memory pdfbox may use for each PDF. Beyond that, it uses a temp file. Set to -1 to keep everything in memory. Defaults to 64MB"
+
+      opt[Double]("gazetteerFalsePositiveRate") action { (r, c) =>
+        c.copy(gazetteerFalsePositiveRate = r)
+      } text "Keeps the gazetteer in a Bloom filter with this false positive rate, which takes much less memory. Defaults to 0, which keeps the gazetteer exactly."
+
+      checkConfig { c =>
+        if (c.trace && c.workers.nonEmpty) failure("--trace does not work with --workers") else success
+      }
+
       help("help") text "Prints help text"
     }
 
@@ -96,8 +205,28 @@ object RunSP extends Logging {
         loggerConfig.Logger.apply("org.allenai.scienceparse.Parser").setLevel(Level.ERROR)
       }
 
-      val parserFuture = Future {
-        new Parser(modelFile, gazetteerFile, bibModelFile)
+      val timeout = 60000 // ms
+      val backendFuture = Future {
+        config.workers match {
+          case Some(workers) =>
+            new WorkerPool(
+              workers,
+              modelFile,
+              gazetteerFile,
+              bibModelFile,
+              config.workerHeap,
+              timeout,
+              budget = config.budget,
+              gazetteerFalsePositiveRate = config.gazetteerFalsePositiveRate)
+          case None =>
+            val scienceParser = new Parser(
+              modelFile.toFile,
+              gazetteerFile.toFile,
+              bibModelFile.toFile,
+              PaperHashSet.forFalsePositiveRate(config.gazetteerFalsePositiveRate))
+            scienceParser.setBudget(config.budget)
+            new ParsingBackend.InProcess(scienceParser, timeout)
+        }
       }
 
       val paperSource = {
@@ -116,134 +245,198 @@ object RunSP extends Logging {
         }
       }
 
-      // if the output file already exists, read the names from it to see what we should skip
-      val skipNames = config.outputFile.filter(_.exists()).map { f =>
-        Resource.using(Source.fromFile(f, "UTF-8")) { source =>
-          source.getLines().flatMap { line =>
-            val tree = jsonWriter.readTree(line)
-            Option(tree.get("name").asText()).filter(_.nonEmpty)
-          }.toSet
+      // Machines that share an output directory write their own shards.
+      val shardPrefix = config.shard.map(s => s"part-${s.index}-of-${s.count}").getOrElse("part")
+
+      // the checkpoint tells us which documents a previous run already finished
+      val checkpointFile = config.checkpointFile.
+        orElse(config.outputFile.map(Checkpoint.fileFor)).
+        orElse(config.outputShardDir.map(new File(_, shardPrefix + ".checkpoint")))
+      val checkpoint = checkpointFile.map { f =>
+        val isNew = !f.exists()
+        val loaded = new Checkpoint(f)
+        // Output files from before we had checkpoints have to be read once to create one.
+        if (isNew) config.outputFile.filter(_.exists()).foreach { outputFile =>
+          logger.info(s"Creating checkpoint $f from $outputFile")
+          Resource.using(Source.fromFile(outputFile, "UTF-8")) { source =>
+            source.getLines().foreach { line =>
+              val tree = jsonWriter.readTree(line)
+              Option(tree.get("name")).map(_.asText()).filter(_.nonEmpty).foreach(loaded.add)
+            }
+          }
         }
-      }.getOrElse(Set.empty)
+        loaded
+      }
+
+      def shouldParse(name: String) =
+        config.shard.forall(_.contains(name)) && !checkpoint.exists(_.contains(name))
 
       val shaRegex = "^[0-9a-f]{40}$" r
-      def stringToInputStreams(s: String): Iterator[(String, InputStream)] = {
-        if(skipNames.contains(s)) {
-          Iterator.empty
-        } else {
-          val file = new File(s)
-
-          if (s.endsWith(".pdf")) {
-            Iterator((s, new FileInputStream(file)))
-          } else if (s.endsWith(".txt")) {
-            val lines = new Iterator[String] {
-              private val input = new BufferedReader(
-                new InputStreamReader(
-                  new FileInputStream(file),
-                  "UTF-8"))
-
-              def getNextLine: String = {
-                val result = input.readLine()
-                if (result == null)
-                  input.close()
-                result
-              }
+      // Finds the papers to parse, but does not open them. That happens in the fetch stage.
+      def stringToInputs(s: String): Iterator[Input] = {
+        val file = new File(s)
+
+        if (s.endsWith(".pdf")) {
+          Iterator(Input(s, () => new FileInputStream(file)))
+        } else if (s.endsWith(".txt")) {
+          val lines = new Iterator[String] {
+            private val input = new BufferedReader(
+              new InputStreamReader(
+                new FileInputStream(file),
+                "UTF-8"))
+
+            def getNextLine: String = {
+              val result = input.readLine()
+              if (result == null)
+                input.close()
+              result
+            }
 
-              private var nextLine = getNextLine
+            private var nextLine = getNextLine
 
-              override def hasNext: Boolean = nextLine != null
+            override def hasNext: Boolean = nextLine != null
 
-              override def next(): String = {
-                val result = nextLine
-                nextLine = if (nextLine == null) null else getNextLine
-                if (result == null)
-                  throw new NoSuchElementException
-                else
-                  result
-              }
-            }
-            lines.parMap(stringToInputStreams, 16).flatten
-          } else if (file.isDirectory) {
-            def listFiles(startFile: File): Iterator[File] =
-              startFile.listFiles.iterator.flatMap {
-                case dir if dir.isDirectory => listFiles(dir)
-                case f if f.isFile && f.getName.endsWith(".pdf") => Iterator(f)
-                case _ => Iterator.empty
-              }
-            listFiles(file).
-              filterNot(f => skipNames.contains(f.getName)).
-              map(f => (f.getName, new FileInputStream(f)))
-          } else if (shaRegex.findFirstIn(s).isDefined) {
-            try {
-              Iterator((s, paperSource.getPdf(s)))
-            } catch {
-              case NonFatal(e) =>
-                logger.info(s"Locating $s failed with ${e.toString}. Ignoring.")
-                Iterator.empty
+            override def next(): String = {
+              val result = nextLine
+              nextLine = if (nextLine == null) null else getNextLine
+              if (result == null)
+                throw new NoSuchElementException
+              else
+                result
             }
-          } else {
-            logger.warn(s"Input $s is not something I understand. I'm ignoring it.")
-            Iterator.empty
           }
+          lines.flatMap(stringToInputs)
+        } else if (file.isDirectory) {
+          def listFiles(startFile: File): Iterator[File] =
+            startFile.listFiles.iterator.flatMap {
+              case dir if dir.isDirectory => listFiles(dir)
+              case f if f.isFile && f.getName.endsWith(".pdf") => Iterator(f)
+              case _ => Iterator.empty
+            }
+          listFiles(file).map(f => Input(f.getName, () => new FileInputStream(f)))
+        } else if (shaRegex.findFirstIn(s).isDefined) {
+          Iterator(Input(s, () => paperSource.getPdf(s)))
+        } else {
+          logger.warn(s"Input $s is not something I understand. I'm ignoring it.")
+          Iterator.empty
         }
       }
 
-      val inputStreams = config.pdfInputs.iterator.flatMap(stringToInputStreams)
+      val inputs = config.pdfInputs.iterator.flatMap(stringToInputs).filter(input => shouldParse(input.name))
 
-      val outputStream = config.outputFile.map(new FileOutputStream(_, true))
+      val outputStream = config.outputFile.map { f =>
+        new BufferedOutputStream(new FileOutputStream(f, true))
+      }
+      val shardedOutput = config.outputShardDir.map { dir =>
+        new ShardedOutputWriter(dir, shardPrefix, config.compression, config.shardDocuments, config.shardBytes)
+      }
+      // Without any of the other outputs, we write to stdout.
+      val writeToStdout = config.outputDir.isEmpty && outputStream.isEmpty && shardedOutput.isEmpty
       try {
-        val parser = Await.result(parserFuture, 15 minutes)
+        val backend = Await.result(backendFuture, 15 minutes)
 
         val startTime = System.currentTimeMillis()
-        val finishedCount = new AtomicInteger()
-        val timeout = 60000 // ms
-        inputStreams.parForeach { case (name, is) =>
+        var finishedCount = 0 // only touched by the writer
+
+        def fetch(input: Input): Option[Fetched] = {
+          try {
+            Some(Fetched(input.name, Resource.using(config.budget.limit(input.open()))(IOUtils.toByteArray)))
+          } catch {
+            case e: DocumentBudget.DocumentTooLargeException =>
+              logger.info(s"Skipping ${input.name}: ${e.getMessage}")
+              None
+            case NonFatal(e) =>
+              logger.info(s"Locating ${input.name} failed with ${e.toString}. Ignoring.")
+              None
+          }
+        }
+
+        def parse(fetched: Fetched): Option[Parsed] = {
+          val name = fetched.name
           logger.info(s"Starting $name")
           try {
             val thisDocStartTime = System.currentTimeMillis()
-            val metadata = parser.doParseWithTimeout(is, timeout)
+            val trace = if (config.trace) new ParseTrace() else ParseTrace.DISABLED
+            val metadata = backend.parse(fetched.bytes, trace)
             val wrapper = MetadataWrapper(name, metadata)
             val thisDocEndTime = System.currentTimeMillis()
             if(thisDocEndTime - thisDocStartTime > timeout)
               logger.warn(s"Document $name took ${thisDocEndTime - thisDocStartTime} ms")
 
-            // write to output directory
-            config.outputDir.foreach { dir =>
-              prettyJsonWriter.writeValue(new File(dir, name + ".json"), wrapper)
-            }
-
-            // write to output file
-            outputStream.foreach { os =>
-              val bytes = jsonWriter.writeValueAsBytes(wrapper)
-              os.synchronized {
-                os.write(bytes)
-                os.write('\n')
-                os.flush()
-              }
+            // Serialize here, so the single writer thread only has to copy bytes.
+            def serialize(pretty: Boolean) = {
+              val buffer = new ByteArrayOutputStream()
+              writeJson(wrapper, buffer, pretty)
+              buffer.toByteArray
             }
-
-            // write to stdout
-            if(config.outputDir.isEmpty && outputStream.isEmpty) {
-              System.out.synchronized {
-                prettyJsonWriter.writeValue(System.out, wrapper)
-              }
+            val line =
+              if (outputStream.isEmpty && shardedOutput.isEmpty) None else Some(serialize(pretty = false))
+            val document = if (config.outputDir.isEmpty && !writeToStdout) {
+              None // only the line outputs need this document
+            } else {
+              Some(line.filterNot(_ => config.pretty).getOrElse(serialize(config.pretty)))
             }
-
+            // Compressing is expensive, so we do it here, on many threads.
+            val shardRecord = for (w <- shardedOutput; l <- line) yield w.encode(l)
+            logger.info(s"Finished $name")
+            Some(Parsed(name, document, outputStream.flatMap(_ => line), shardRecord))
           } catch {
             case NonFatal(e) =>
               logger.info(s"Parsing $name failed with ${e.toString}")
+              None
+          }
+        }
+
+        def write(parsed: Parsed): Unit = {
+          // write to output directory
+          for (dir <- config.outputDir; document <- parsed.document) {
+            Resource.using(
+              new BufferedOutputStream(new FileOutputStream(new File(dir, parsed.name + ".json")))
+            ) { os =>
+              os.write(document)
+            }
           }
-          logger.info(s"Finished $name")
 
-          val newFinishedCount = finishedCount.incrementAndGet()
-          if (newFinishedCount % 1000 == 0) {
+          // write to output file
+          for (os <- outputStream; line <- parsed.line) {
+            os.write(line)
+            os.write('\n')
+            os.flush()
+          }
+
+          // write to output shards
+          for (w <- shardedOutput; record <- parsed.shardRecord)
+            w.write(parsed.name, record)
+
+          // write to stdout
+          if(writeToStdout) {
+            parsed.document.foreach(document => System.out.write(document))
+            System.out.println()
+          }
+
+          checkpoint.foreach(_.add(parsed.name))
+
+          finishedCount += 1
+          if (finishedCount % 1000 == 0) {
             val elapsedMs = System.currentTimeMillis() - startTime
-            val dps = 1000.0 * newFinishedCount.toDouble / elapsedMs
-            println(f"Finished $newFinishedCount documents. $dps%.2f dps")
+            val dps = 1000.0 * finishedCount.toDouble / elapsedMs
+            println(f"Finished $finishedCount documents. $dps%.2f dps")
           }
         }
+
+        new BatchPipeline[Input, Fetched, Parsed](
+          config.fetchThreads,
+          config.workers.getOrElse(config.parseThreads),
+          queueSize = 2 * config.workers.getOrElse(config.parseThreads)
+        )(fetch, parse, write).run(inputs)
       } finally {
+        backendFuture.value.flatMap(_.toOption).foreach {
+          case pool: WorkerPool => pool.close()
+          case _ =>
+        }
         outputStream.foreach(_.close())
+        shardedOutput.foreach(_.close())
+        checkpoint.foreach(_.close())
       }
     }
   }
@@ -0,0 +1,118 @@
+package org.allenai.scienceparse
+
+import java.io._
+import java.util.zip.GZIPOutputStream
+
+/** Writes one line of JSON per document into a directory of shards. A shard is closed, and the
+  * next one started, when it reaches maxDocuments documents or maxBytes bytes.
+  *
+  * Next to every shard is an index file. It has one line per document, with the document name,
+  * the offset of the document in the shard, and its length, separated by tabs.
+  *
+  * With gzip compression, every document is compressed as its own gzip member. A shard is still a
+  * valid gzip file, so zcat works, but you can also seek to the offset of a single document and
+  * decompress only that one.
+  *
+  * encode() does the compression. It is thread-safe, so callers can compress on many threads.
+  * write() and close() must be called from one thread only.
+  *
+  * @param prefix the start of all file names. Writers that share a directory need different
+  *               prefixes.
+  */
+class ShardedOutputWriter(
+  directory: File,
+  prefix: String,
+  compression: ShardedOutputWriter.Compression,
+  maxDocuments: Int,
+  maxBytes: Long
+) extends Closeable {
+  require(maxDocuments > 0 && maxBytes > 0)
+  directory.mkdirs()
+
+  /** Turns a line of JSON into what goes into the shard */
+  def encode(line: Array[Byte]): Array[Byte] = {
+    val buffer = new ByteArrayOutputStream(line.length / 4 + 64)
+    val os = compression.wrap(buffer)
+    os.write(line)
+    os.write('\n')
+    os.close()
+    buffer.toByteArray
+  }
+
+  private class Shard(number: Int) {
+    private val name = f"$prefix-$number%05d"
+    val data = new BufferedOutputStream(
+      new FileOutputStream(new File(directory, s"$name.jsonl${compression.extension}")))
+    val index = new BufferedWriter(
+      new OutputStreamWriter(new FileOutputStream(new File(directory, s"$name.index")), "UTF-8"))
+    var documents = 0
+    var bytes = 0L
+
+    def close(): Unit = {
+      data.close()
+      index.close()
+    }
+  }
+
+  // Never append to shards from an earlier run. Start after the last one instead.
+  private var nextShardNumber = {
+    val shardRegex = (java.util.regex.Pattern.quote(prefix) + "-(\\d+)\\.index").r
+    val existing = Option(directory.list()).getOrElse(Array.empty[String]).collect {
+      case shardRegex(number) => number.toInt
+    }
+    if (existing.isEmpty) 0 else existing.max + 1
+  }
+
+  private var current: Option[Shard] = None
+
+  private def currentShard: Shard = current.getOrElse {
+    val shard = new Shard(nextShardNumber)
+    nextShardNumber += 1
+    current = Some(shard)
+    shard
+  }
+
+  /** Writes a document that came out of encode() */
+  def write(name: String, encoded: Array[Byte]): Unit = {
+    val shard = currentShard
+    shard.data.write(encoded)
+    shard.data.flush()
+    // The index is written after the data, so every document in the index is complete.
+    shard.index.write(s"$name\t${shard.bytes}\t${encoded.length}\n")
+    shard.index.flush()
+
+    shard.documents += 1
+    shard.bytes += encoded.length
+    if (shard.documents >= maxDocuments || shard.bytes >= maxBytes) {
+      shard.close()
+      current = None
+    }
+  }
+
+  override def close(): Unit = {
+    current.foreach(_.close())
+    current = None
+  }
+}
+
+object ShardedOutputWriter {
+  sealed abstract class Compression(val name: String, val extension: String) {
+    def wrap(os: OutputStream): OutputStream
+  }
+
+  case object NoCompression extends Compression("none", "") {
+    override def wrap(os: OutputStream): OutputStream = os
+  }
+
+  case object Gzip extends Compression("gzip", ".gz") {
+    override def wrap(os: OutputStream): OutputStream = new GZIPOutputStream(os)
+  }
+
+  val compressions: Seq[Compression] = Seq(NoCompression, Gzip)
+
+  def compression(name: String): Compression =
+    compressions.find(_.name == name).getOrElse {
+      throw new IllegalArgumentException(
+        s"Unknown compression '$name'. Expected one of ${compressions.map(_.name).mkString(", ")}.")
+    }
+}
@@ -1,39 +1,82 @@
 package org.allenai.scienceparse;
 
-import com.gs.collections.impl.set.mutable.primitive.LongHashSet;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
 import org.allenai.scienceparse.ParserGroundTruth.Paper;
 
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.Serializable;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
-public class CheckReferences implements Serializable {
-  private LongHashSet paperHashCodes = new LongHashSet();
+/**
+ * Checks whether a reference is a paper we know about from the gazetteer.
+ *
+ * The papers are stored as 64-bit hashes in a PaperHashSet, either exactly or in a Bloom filter.
+ * The set can be written to a cache file, and memory-mapped from there, so processes on the same
+ * machine share one copy of it, and don't have to parse the gazetteer again.
+ */
+@Slf4j
+public class CheckReferences {
+  /** Change this whenever the cache format, or the way we hash papers, changes. */
+  public static final int CACHE_FORMAT_VERSION = 1;
+  private static final long CACHE_MAGIC = 0x5350474153484553L; // "SPGASHES"
+  private static final int CACHE_HEADER_BYTES = 24; // magic, version, kind of set, count
+
+  private final PaperHashSet paperHashes;
 
   public CheckReferences(String jsonFile) throws IOException {
-    addPapers(new ParserGroundTruth(jsonFile).papers);
+    this(new FileInputStream(jsonFile));
   }
 
+  /** Reads the gazetteer in JSON lines format, and closes the stream. */
   public CheckReferences(final InputStream is) throws IOException {
-    addPapers(new ParserGroundTruth(is).papers);
+    this(is, PaperHashSet.exact());
   }
 
-  public int getHashSize() {
-    return paperHashCodes.size();
+  public CheckReferences(final InputStream is, final PaperHashSet.Factory factory) throws IOException {
+    this(factory.build(sortedUnique(hashPapers(is))));
   }
 
-  public void addPaper(String title, List<String> authors, int year, String venue) {
-    paperHashCodes.add(getHashCode(title, authors, year, venue));
+  public CheckReferences(final List<Paper> papers) {
+    this(PaperHashSet.exact().build(sortedUnique(papers.stream().mapToLong(p ->
+        hashOf(p.title, Arrays.asList(p.authors), p.year)).toArray())));
+  }
+
+  private CheckReferences(final PaperHashSet paperHashes) {
+    this.paperHashes = paperHashes;
+  }
+
+  public int getHashSize() {
+    return paperHashes.size();
   }
 
   public boolean hasPaper(String title, List<String> authors, int year, String venue) {
-    return paperHashCodes.contains(getHashCode(title, authors, year, venue));
+    return paperHashes.contains(getHashCode(title, authors, year, venue));
   }
 
   public long getHashCode(String title, List<String> authors, int year, String venue) {
+    return hashOf(title, authors, year);
+  }
+
+  private static long hashOf(String title, List<String> authors, int year) {
     title = Parser.processTitle(title);
     authors = Parser.lastNames(authors);
     if(title==null)
@@ -45,9 +88,170 @@ public class CheckReferences implements Serializable {
     return hashCode;
   }
 
-  public void addPapers(List<Paper> papers) {
-    for (Paper p : papers) {
-      addPaper(p.title, Arrays.asList(p.authors), p.year, p.venue);
+  //
+  // Reading the gazetteer
+  //
+
+  private static final JsonFactory jsonFactory = new JsonFactory();
+
+  /**
+   * Hashes every paper in the gazetteer. We only need the hashes, so instead of binding every line
+   * to a Paper object, we pick out the fields we need with Jackson's streaming parser. Lines are
+   * hashed in parallel.
+   */
+  private static long[] hashPapers(final InputStream is) throws IOException {
+    try(final BufferedReader reader = new BufferedReader(new InputStreamReader(is, "UTF-8"))) {
+      final long[] result = reader.lines().
+          parallel().
+          filter(line -> !line.trim().isEmpty()).
+          mapToLong(CheckReferences::hashLine).
+          toArray();
+      log.info("Read " + result.length + " papers.");
+      return result;
+    } catch(final UncheckedIOException e) {
+      throw e.getCause();
+    }
+  }
+
+  private static long hashLine(final String line) {
+    String title = null;
+    final List<String> authors = new ArrayList<>();
+    int year = 0;
+    try(final JsonParser parser = jsonFactory.createParser(line)) {
+      if(parser.nextToken() != JsonToken.START_OBJECT)
+        throw new IOException("Expected a JSON object in the gazetteer, but got " + line);
+      while(parser.nextToken() == JsonToken.FIELD_NAME) {
+        final String field = parser.getCurrentName();
+        final JsonToken value = parser.nextToken();
+        if(field.equals("title")) {
+          title = parser.getValueAsString();
+        } else if(field.equals("year")) {
+          year = parser.getValueAsInt();
+        } else if(field.equals("authors") && value == JsonToken.START_ARRAY) {
+          while(parser.nextToken() != JsonToken.END_ARRAY)
+            authors.add(ParserGroundTruth.invertAroundComma(parser.getValueAsString()));
+        } else {
+          parser.skipChildren();
+        }
+      }
+    } catch(final IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return hashOf(title, authors, year);
+  }
+
+  /** Sorts the array, and returns it without duplicates. */
+  private static long[] sortedUnique(final long[] hashes) {
+    Arrays.parallelSort(hashes);
+    int unique = 0;
+    for(int i = 0; i < hashes.length; i++) {
+      if(i == 0 || hashes[i] != hashes[i - 1])
+        hashes[unique++] = hashes[i];
+    }
+    return Arrays.copyOf(hashes, unique);
+  }
+
+  //
+  // Cache files
+  //
+
+  /**
+   * Writes the hashes to a cache file. The file is written under a temporary name first, and
+   * then moved into place, so readers never see a partial file.
+   */
+  public void writeCache(final Path cacheFile) throws IOException {
+    final Path tempFile =
+        Files.createTempFile(cacheFile.toAbsolutePath().getParent(), cacheFile.getFileName().toString(), ".tmp");
+    try {
+      try(final DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        out.writeLong(CACHE_MAGIC);
+        out.writeInt(CACHE_FORMAT_VERSION);
+        out.writeInt(paperHashes.kind());
+        final LongWindows data = paperHashes.data();
+        out.writeLong(data.size());
+        for (int i = 0; i < data.size(); i++)
+          out.writeLong(data.get(i));
+      }
+      Files.move(tempFile, cacheFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /**
+   * Memory-maps a cache file that was written with writeCache(). Throws IOException if the file
+   * is damaged, or from a different version. Files bigger than 2GB are mapped in several windows.
+   */
+  public static CheckReferences readCache(final Path cacheFile) throws IOException {
+    return readCache(cacheFile, LongWindows.DEFAULT_WINDOW_SHIFT);
+  }
+
+  static CheckReferences readCache(final Path cacheFile, final int windowShift) throws IOException {
+    try(final FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if(size < CACHE_HEADER_BYTES)
+        throw new IOException("Gazetteer cache " + cacheFile + " has invalid size " + size);
+      // The mappings stay valid after the channel is closed.
+      final ByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, CACHE_HEADER_BYTES);
+      if(header.getLong() != CACHE_MAGIC)
+        throw new IOException(cacheFile + " is not a gazetteer cache");
+      final int version = header.getInt();
+      if(version != CACHE_FORMAT_VERSION)
+        throw new IOException("Gazetteer cache " + cacheFile + " has version " + version);
+      final int kind = header.getInt();
+      final long count = header.getLong();
+      if(count < 0 || count > Integer.MAX_VALUE)
+        throw new IOException("Gazetteer cache " + cacheFile + " has invalid count " + count);
+      if(CACHE_HEADER_BYTES + 8 * count != size)
+        throw new IOException("Gazetteer cache " + cacheFile + " is truncated");
+      final LongWindows data = LongWindows.map(channel, CACHE_HEADER_BYTES, (int)count, windowShift);
+      return new CheckReferences(PaperHashSet.fromData(kind, data));
+    }
+  }
+
+  /**
+   * Loads the gazetteer through a cache in cacheDirectory. The name of the cache file contains a
+   * hash of the gazetteer's content, the kind of set, and the format version, so a changed
+   * gazetteer or a new version of the code gets a new cache file.
+   *
+   * Processes that find the cache missing build it at the same time, but none of them waits for
+   * the others, and none of them ever reads a half-written cache.
+   */
+  public static CheckReferences loadCached(final File gazetteerFile, final Path cacheDirectory) throws IOException {
+    return loadCached(gazetteerFile, cacheDirectory, PaperHashSet.exact());
+  }
+
+  public static CheckReferences loadCached(
+      final File gazetteerFile,
+      final Path cacheDirectory,
+      final PaperHashSet.Factory factory
+  ) throws IOException {
+    final String contentHash =
+        com.google.common.io.Files.hash(gazetteerFile, Hashing.murmur3_128()).toString().substring(0, 16);
+    final Path cacheFile = cacheDirectory.resolve(String.format(
+        "%s-%s-%s-v%d.gazetteerCache.bin",
+        gazetteerFile.getName(),
+        contentHash,
+        factory.name(),
+        CACHE_FORMAT_VERSION));
+
+    if(Files.exists(cacheFile)) {
+      try {
+        log.info("Reading from gazetteer cache at {}", cacheFile);
+        return readCache(cacheFile);
+      } catch(final IOException e) {
+        log.warn("Could not load gazetteer from cache. Loading it slowly instead.", e);
+      }
+    }
+
+    final CheckReferences result = new CheckReferences(new FileInputStream(gazetteerFile), factory);
+    try {
+      log.info("Creating gazetteer cache at {}", cacheFile);
+      result.writeCache(cacheFile);
+    } catch(final IOException e) {
+      log.warn("Could not write gazetteer cache", e);
     }
+    return result;
   }
 }
@@ -0,0 +1,118 @@
+package org.allenai.scienceparse;
+
+import lombok.Builder;
+import lombok.Value;
+import org.apache.pdfbox.io.MemoryUsageSetting;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Limits on the PDFs the parser accepts, and on how much heap pdfbox may use for each of them.
+ * Documents that are over the limits fail early with a DocumentTooLargeException, before they
+ * can use up the heap.
+ */
+@Builder(toBuilder = true)
+@Value
+public class DocumentBudget {
+  /** Documents with more bytes than this are rejected while they are read. 0 means no limit. */
+  long maxBytes;
+
+  /** Documents with more pages than this are rejected right after loading. 0 means no limit. */
+  int maxPages;
+
+  /**
+   * pdfbox keeps up to this many bytes of a document in memory, and the rest in a temp file.
+   * -1 means it keeps everything in memory.
+   */
+  long maxMainMemoryBytes;
+
+  /** No limits, and everything in memory. That's how pdfbox behaves by default. */
+  public static final DocumentBudget UNLIMITED =
+      DocumentBudget.builder().maxBytes(0).maxPages(0).maxMainMemoryBytes(-1).build();
+
+  /** Generous enough for papers, but it stops scanned books and other monsters. */
+  public static final DocumentBudget DEFAULT =
+      DocumentBudget.builder().
+          maxBytes(100L * 1024 * 1024).
+          maxPages(500).
+          maxMainMemoryBytes(64L * 1024 * 1024).
+          build();
+
+  public static class DocumentTooLargeException extends RuntimeException {
+    public DocumentTooLargeException(final String message) {
+      super(message);
+    }
+  }
+
+  public MemoryUsageSetting memoryUsageSetting() {
+    if(maxMainMemoryBytes < 0)
+      return MemoryUsageSetting.setupMainMemoryOnly();
+    else
+      return MemoryUsageSetting.setupMixed(maxMainMemoryBytes);
+  }
+
+  /** Wraps the stream so that reading more than maxBytes from it throws */
+  public InputStream limit(final InputStream is) {
+    if(maxBytes <= 0)
+      return is;
+
+    return new FilterInputStream(is) {
+      private long bytesRead = 0;
+
+      private void count(final long n) {
+        if(n > 0) {
+          bytesRead += n;
+          if(bytesRead > maxBytes)
+            throw new DocumentTooLargeException(
+                String.format("Document is larger than the limit of %d bytes", maxBytes));
+        }
+      }
+
+      @Override
+      public int read() throws IOException {
+        final int b = super.read();
+        if(b >= 0)
+          count(1);
+        return b;
+      }
+
+      @Override
+      public int read(final byte[] b, final int off, final int len) throws IOException {
+        final int n = super.read(b, off, len);
+        count(n);
+        return n;
+      }
+
+      @Override
+      public long skip(final long n) throws IOException {
+        final long skipped = super.skip(n);
+        count(skipped);
+        return skipped;
+      }
+
+      @Override
+      public boolean markSupported() {
+        return false;
+      }
+    };
+  }
+
+  /**
+   * Throws if a document of this many bytes is too large. For callers that know the size before
+   * they read anything, like from a Content-Length header.
+   */
+  public void checkBytes(final long bytes) {
+    if(maxBytes > 0 && bytes > maxBytes)
+      throw new DocumentTooLargeException(
+          String.format("Document has %d bytes, more than the limit of %d", bytes, maxBytes));
+  }
+
+  /** Throws if the document has too many pages */
+  public void checkPages(final int pages) {
+    if(maxPages > 0 && pages > maxPages)
+      throw new DocumentTooLargeException(
+          String.format("Document has %d pages, more than the limit of %d", pages, maxPages));
+  }
+}
@@ -10,7 +10,6 @@ import java.io.DataInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -27,7 +26,6 @@ import org.allenai.ml.sequences.crf.CRFWeightsEncoder;
 import org.allenai.ml.util.IOUtils;
 import org.allenai.ml.util.Indexer;
 import org.nustaq.serialization.FSTObjectInput;
-import org.nustaq.serialization.FSTObjectOutput;
 
 @Slf4j
 public class ExtractReferences {
@@ -79,24 +77,14 @@ public class ExtractReferences {
   }
 
   public ExtractReferences(final InputStream is, final DataInputStream bibCRFModel) throws IOException {
-    this(is, bibCRFModel, null);
+    this(new CheckReferences(is), bibCRFModel);
   }
 
   public ExtractReferences(
-      final InputStream is,
-      final DataInputStream bibCRFModel,
-      final InputStream gazCacheInputStream
+      final CheckReferences cr,
+      final DataInputStream bibCRFModel
   ) throws IOException {
-    if(gazCacheInputStream != null) {
-      try(final FSTObjectInput in = new FSTObjectInput(gazCacheInputStream)) {
-        cr = (CheckReferences)in.readObject();
-      } catch(final Exception e) {
-        log.warn("Could not load gazetteer from cache. Loading it slowly instead.", e);
-      }
-    }
-
-    if(cr == null)
-      cr = new CheckReferences(is);
+    this.cr = cr;
 
     extractors = new ArrayList<>();
     
@@ -156,19 +144,6 @@ public class ExtractReferences {
     }
   }
 
-  public static ExtractReferences createAndWriteGazCache(
-      final InputStream is,
-      final DataInputStream bibCRFModel,
-      final OutputStream gazCacheFileOutputStream
-  ) throws IOException {
-    val result = new ExtractReferences(is, bibCRFModel);
-
-    final FSTObjectOutput out = new FSTObjectOutput(gazCacheFileOutputStream);
-    out.writeObject(result.cr);
-
-    return result;
-  }
-
   public static CRFModel<String, String, String> loadModel(
     DataInputStream dis
   ) throws IOException {
@@ -199,6 +174,8 @@ public class ExtractReferences {
         log.info("could not load kermit gazetter");
     }
       
+    if(plf != null)
+      plf.dropBagsOfWords();
     val predExtractor = new ReferencesPredicateExtractor(plf);
     predExtractor.setGf(gf);
     val featureEncoder =
@@ -515,6 +492,13 @@ public class ExtractReferences {
    * citation parsing)
    */
   public Pair<List<BibRecord>, BibStractor> findReferences(List<String> paper) {
+    return findReferences(paper, ParseTrace.DISABLED);
+  }
+
+  /**
+   * Same as findReferences(List), but records the time spent in each BibStractor in the trace
+   */
+  public Pair<List<BibRecord>, BibStractor> findReferences(List<String> paper, ParseTrace trace) {
     int start = refStart(paper) + 1;
     List<BibRecord>[] results = new ArrayList[extractors.size()];
     for (int i = 0; i < results.length; i++)
@@ -528,8 +512,11 @@ public class ExtractReferences {
     }
     String text = sb.toString();
     for (int i = 0; i < results.length; i++) {
+      final ParseTrace.OpenSpan span =
+          trace.start("findReferences:" + extractors.get(i).getClass().getSimpleName());
       results[i] = extractors.get(i).parse(text);
       results[i] = clean(results[i]);
+      span.end();
     }
     int idx = longestIdx(results);
     //log.info("references: " + results[idx].toString());
@@ -46,6 +46,7 @@ public class ExtractedMetadata {
   public int year;
   public String abstractText;
   public String creator; // program that created the PDF, i.e. LaTeX or PowerPoint or something else
+  public transient ParseTrace trace; // only set when the caller asked for a trace
 
   /**
    * Constructs ExtractedMetadata from given text and labels
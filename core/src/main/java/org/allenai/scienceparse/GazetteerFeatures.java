@@ -6,9 +6,10 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.Serializable;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
+import java.util.regex.Pattern;
 
 import org.allenai.scienceparse.ExtractedMetadata.LabelSpan;
 
@@ -22,6 +23,10 @@ import lombok.extern.slf4j.Slf4j;
  * Holds gazetteers of journal names, person names, countries, etc.
  * Note: only retains gazetteer entries with length at most MAXLENGTH.
  *
+ * Lookups go to a GazetteerTable, which answers for all gazetteers with one probe. Models store
+ * the gazetteers as one set per gazetteer, so we build the table from those on first use. A
+ * table that was written to a file with writeTable() can also be memory-mapped directly. Those
+ * GazetteerFeatures don't have the sets, so they can't be saved into a model.
  */
 
 @Slf4j
@@ -31,6 +36,8 @@ public class GazetteerFeatures implements Serializable {
   private LongHashSet [] hashSets; //each element represents a gazetteer, the long hashcodes of contained strings
   
   private String [] hashNames;
+
+  private transient volatile GazetteerTable table;
   
   private static int MAXLENGTH = 7; //maximum length (in words) of any gazetteer entry
   
@@ -48,10 +55,44 @@ public class GazetteerFeatures implements Serializable {
       hashNames[i] = files[i].getName();
     }
   }
+
+  public GazetteerFeatures(GazetteerTable table) {
+    this.table = table;
+    hashNames = new String[table.size()];
+    for(int i=0; i<hashNames.length; i++)
+      hashNames[i] = table.name(i);
+  }
+
+  /** Memory-maps a table that was written with writeTable() */
+  public static GazetteerFeatures fromTable(Path tableFile) throws IOException {
+    return new GazetteerFeatures(GazetteerTable.read(tableFile));
+  }
+
+  public void writeTable(Path tableFile) throws IOException {
+    table().write(tableFile);
+  }
+
+  private GazetteerTable table() {
+    GazetteerTable result = table;
+    if(result == null) {
+      synchronized(this) {
+        result = table;
+        if(result == null) {
+          result = GazetteerTable.build(hashSets, hashNames);
+          table = result;
+        }
+      }
+    }
+    return result;
+  }
   
+  private static final Pattern PUNCTUATION = Pattern.compile("\\p{P}+");
+  private static final Pattern SPACES = Pattern.compile("  +");
+
   //transform applied to all gazetteer entries
-  private String t(String s) {
-    return s.toLowerCase().replaceAll("\\p{P}+", " ").replaceAll("  +", " ").trim();
+  private static String t(String s) {
+    s = PUNCTUATION.matcher(s.toLowerCase()).replaceAll(" ");
+    return SPACES.matcher(s).replaceAll(" ").trim();
   }
   
   public static boolean withinLength(String s) {
@@ -83,33 +124,34 @@ public class GazetteerFeatures implements Serializable {
   }
   
   public int size() {
-    return hashSets.length;
+    return hashNames.length;
   }
   
   public int sizeOfSet(int set) {
-    return hashSets[set].size();
+    return table().sizeOfGazetteer(set);
   }
   
   public boolean inSet(String s, int i) {
-    long hc = StringLongHash.hash(t(s));
-    return hashSets[i].contains(hc);
+    return (gazetteerMask(s) & (1L << i)) != 0;
   }
   
   //returns whether a string is in each gazetteer
   public boolean [] inSet(String s) {
-    long hc = StringLongHash.hash(t(s));
-    boolean [] out = new boolean[hashSets.length];
-    Arrays.fill(out, false);
-    for(int i=0; i<hashSets.length;i++) {
-      if(hashSets[i].contains(hc))
-        out[i] = true;
-    }
+    final long mask = gazetteerMask(s);
+    boolean [] out = new boolean[hashNames.length];
+    for(int i=0; i<hashNames.length;i++)
+      out[i] = (mask & (1L << i)) != 0;
     return out;
   }
+
+  /** Returns the gazetteers that contain the string, as a bitmask with one bit per gazetteer */
+  public long gazetteerMask(String s) {
+    return table().get(StringLongHash.hash(t(s)));
+  }
   
   //-1 if not found
   public int gazetteerNumber(String s) {
-    for(int i=0;i<=hashSets.length;i++) {
+    for(int i=0;i<hashNames.length;i++) {
       if(s.equals(hashNames[i]))
         return i;
     }
@@ -125,24 +167,64 @@ public class GazetteerFeatures implements Serializable {
   }
   
   public List<LabelSpan> getSpansForGaz(List<String> ws, int gn) {
-    ArrayList<LabelSpan> out = new ArrayList<>();
-    for(int i=0; i<ws.size();i++) {
-      for(int j=0; j<Math.min(MAXLENGTH, ws.size()+1-i); j++) {
-        String query = getStringSpan(ws, i, j);
-        if(inSet(query, gn)) {
-          LabelSpan ls = new LabelSpan(hashNames[gn], Tuples.pair(i, i+j));
-          out.add(ls);
-        }
-      }
-    }
-    return out;
+    return scanSpans(ws, gn, gn + 1);
   }
   
   public List<LabelSpan> getSpans(List<String> ws) {
-    ArrayList<LabelSpan> out = new ArrayList<>();
-    for(int i=0; i<this.hashSets.length; i++) {
-      out.addAll(getSpansForGaz(ws, i));
+    return scanSpans(ws, 0, hashNames.length);
+  }
+
+  /**
+   * Finds the spans of up to MAXLENGTH-1 words that are in the gazetteers from firstGaz up to
+   * lastGaz. Gives the same result as calling inSet(getStringSpan(...)) for every span, but
+   * normalizes each word only once, builds the hash of a span from the hash of the span that is
+   * one word shorter, and looks up each span in all gazetteers at once.
+   */
+  private List<LabelSpan> scanSpans(List<String> ws, int firstGaz, int lastGaz) {
+    // t() of a span is the t() of its words, without the empty ones, joined by single spaces.
+    final int n = ws.size();
+    final long[] wordHashes = new long[n];
+    final long[] wordPowers = new long[n];
+    final boolean[] wordEmpty = new boolean[n];
+    for(int i=0; i<n; i++) {
+      final String w = t(ws.get(i));
+      wordHashes[i] = StringLongHash.extend(0, w);
+      wordPowers[i] = StringLongHash.power(w.length());
+      wordEmpty[i] = w.isEmpty();
     }
+
+    final GazetteerTable table = table();
+    final List<List<LabelSpan>> found = new ArrayList<>(lastGaz - firstGaz);
+    for(int gn=firstGaz; gn<lastGaz; gn++)
+      found.add(new ArrayList<>());
+
+    for(int i=0; i<n; i++) {
+      long h = StringLongHash.INITIAL;
+      boolean started = false;
+      for(int j=0; j<Math.min(MAXLENGTH, n+1-i); j++) {
+        if(j > 0) {
+          final int w = i + j - 1;
+          if(!wordEmpty[w]) {
+            if(started)
+              h = 31*h + ' ';
+            h = h * wordPowers[w] + wordHashes[w];
+            started = true;
+          }
+        }
+        final long mask = table.get(h);
+        if(mask != 0) {
+          for(int gn=firstGaz; gn<lastGaz; gn++) {
+            if((mask & (1L << gn)) != 0)
+              found.get(gn - firstGaz).add(new LabelSpan(hashNames[gn], Tuples.pair(i, i+j)));
+          }
+        }
+      }
+    }
+
+    // Same order as before: by gazetteer first, then by position.
+    final ArrayList<LabelSpan> out = new ArrayList<>();
+    for(List<LabelSpan> spans : found)
+      out.addAll(spans);
     return out;
   }
   
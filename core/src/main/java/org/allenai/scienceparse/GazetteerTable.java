@@ -0,0 +1,192 @@
+package org.allenai.scienceparse;
+
+import com.gs.collections.api.iterator.LongIterator;
+import com.gs.collections.impl.set.mutable.primitive.LongHashSet;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * All gazetteers of GazetteerFeatures in one open-addressing hash table. It maps the hash of a
+ * string to a bitmask, with one bit for every gazetteer that contains the string, so one probe
+ * answers for all gazetteers. That limits us to 64 gazetteers.
+ *
+ * The table is a LongBuffer of (key, mask) pairs. Empty slots have a mask of 0. The table can be
+ * written to a file and memory-mapped from there.
+ */
+public class GazetteerTable {
+  private static final long MAGIC = 0x5350474154424c45L; // "SPGATBLE"
+  private static final int VERSION = 1;
+  public static final int MAX_GAZETTEERS = 64;
+
+  private final String[] names;
+  private final int[] sizes;
+  private final LongBuffer slots;
+  private final int slotMask;
+
+  private GazetteerTable(final String[] names, final int[] sizes, final LongBuffer slots) {
+    this.names = names;
+    this.sizes = sizes;
+    this.slots = slots;
+    this.slotMask = slots.limit() / 2 - 1;
+  }
+
+  public static GazetteerTable build(final LongHashSet[] sets, final String[] names) {
+    if(sets.length > MAX_GAZETTEERS)
+      throw new IllegalArgumentException(
+          "Can't have more than " + MAX_GAZETTEERS + " gazetteers, but got " + sets.length);
+
+    final LongHashSet allKeys = new LongHashSet();
+    final int[] sizes = new int[sets.length];
+    for(int i = 0; i < sets.length; i++) {
+      allKeys.addAll(sets[i]);
+      sizes[i] = sets[i].size();
+    }
+
+    // At most half full, so probe sequences stay short
+    int capacity = 2;
+    while(capacity < 2L * allKeys.size())
+      capacity *= 2;
+    final GazetteerTable result =
+        new GazetteerTable(names.clone(), sizes, LongBuffer.wrap(new long[2 * capacity]));
+    for(int i = 0; i < sets.length; i++) {
+      final long bit = 1L << i;
+      final LongIterator keys = sets[i].longIterator();
+      while(keys.hasNext())
+        result.addBit(keys.next(), bit);
+    }
+    return result;
+  }
+
+  private static int mix(long h) {
+    h ^= h >>> 33;
+    h *= 0xff51afd7ed558ccdL;
+    h ^= h >>> 33;
+    return (int)h;
+  }
+
+  private void addBit(final long key, final long bit) {
+    int slot = mix(key) & slotMask;
+    while(true) {
+      final long mask = slots.get(2 * slot + 1);
+      if(mask == 0) {
+        slots.put(2 * slot, key);
+        slots.put(2 * slot + 1, bit);
+        return;
+      }
+      if(slots.get(2 * slot) == key) {
+        slots.put(2 * slot + 1, mask | bit);
+        return;
+      }
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  /** Returns the gazetteers that contain the key, as a bitmask. 0 means none. */
+  public long get(final long key) {
+    int slot = mix(key) & slotMask;
+    while(true) {
+      final long mask = slots.get(2 * slot + 1);
+      if(mask == 0 || slots.get(2 * slot) == key)
+        return mask;
+      slot = (slot + 1) & slotMask;
+    }
+  }
+
+  public int size() {
+    return names.length;
+  }
+
+  public String name(final int gazetteer) {
+    return names[gazetteer];
+  }
+
+  public int sizeOfGazetteer(final int gazetteer) {
+    return sizes[gazetteer];
+  }
+
+  //
+  // Files
+  //
+
+  /** Writes the table under a temporary name, and moves it into place when it's done. */
+  public void write(final Path file) throws IOException {
+    final Path tempFile =
+        Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+    try {
+      try(final DataOutputStream out =
+            new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+        out.writeLong(MAGIC);
+        out.writeInt(VERSION);
+        out.writeInt(names.length);
+        int headerBytes = 16;
+        for(int i = 0; i < names.length; i++) {
+          final byte[] name = names[i].getBytes(StandardCharsets.UTF_8);
+          out.writeInt(sizes[i]);
+          out.writeInt(name.length);
+          out.write(name);
+          headerBytes += 8 + name.length;
+        }
+        // The slots start at a multiple of 8 bytes, so they can be read as longs.
+        while(headerBytes % 8 != 0) {
+          out.writeByte(0);
+          headerBytes += 1;
+        }
+        out.writeLong(slots.limit());
+        for(int i = 0; i < slots.limit(); i++)
+          out.writeLong(slots.get(i));
+      }
+      Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+    } finally {
+      Files.deleteIfExists(tempFile);
+    }
+  }
+
+  /** Memory-maps a table that was written with write() */
+  public static GazetteerTable read(final Path file) throws IOException {
+    try(final FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if(size > Integer.MAX_VALUE)
+        throw new IOException("Gazetteer table " + file + " is too large to map");
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      try {
+        if(buffer.getLong() != MAGIC)
+          throw new IOException(file + " is not a gazetteer table");
+        final int version = buffer.getInt();
+        if(version != VERSION)
+          throw new IOException("Gazetteer table " + file + " has version " + version);
+
+        final int count = buffer.getInt();
+        if(count < 0 || count > MAX_GAZETTEERS)
+          throw new IOException("Gazetteer table " + file + " has " + count + " gazetteers");
+        final String[] names = new String[count];
+        final int[] sizes = new int[count];
+        for(int i = 0; i < count; i++) {
+          sizes[i] = buffer.getInt();
+          final byte[] name = new byte[buffer.getInt()];
+          buffer.get(name);
+          names[i] = new String(name, StandardCharsets.UTF_8);
+        }
+        while(buffer.position() % 8 != 0)
+          buffer.get();
+
+        final long slotCount = buffer.getLong();
+        if(buffer.position() + 8 * slotCount != size || slotCount < 4 || Long.bitCount(slotCount) != 1)
+          throw new IOException("Gazetteer table " + file + " is damaged");
+        return new GazetteerTable(names, sizes, buffer.slice().asLongBuffer());
+      } catch(final RuntimeException e) {
+        // BufferUnderflowException, NegativeArraySizeException, and friends
+        throw new IOException("Gazetteer table " + file + " is damaged", e);
+      }
+    }
+  }
+}
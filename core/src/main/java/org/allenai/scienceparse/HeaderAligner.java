@@ -0,0 +1,169 @@
+package org.allenai.scienceparse;
+
+import com.gs.collections.api.tuple.Pair;
+import com.gs.collections.impl.tuple.Tuples;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds ground truth strings in the tokens of one paper, for labeling training data.
+ *
+ * The tokens are normalized once, when the aligner is made. A search turns its target into a
+ * sequence of steps, and then goes over the tokens once, following the partial matches from all
+ * start positions at the same time. It finds the same spans as trying every start position in
+ * turn, the way PDFToCRFInput.findPatternEnd() does.
+ */
+public class HeaderAligner {
+  private final String[] tokens;
+
+  public HeaderAligner(final List<String> tokens) {
+    this.tokens = new String[tokens.size()];
+    for(int i = 0; i < this.tokens.length; i++)
+      this.tokens[i] = StringUtils.normalize(tokens.get(i));
+  }
+
+  private interface Step {
+    boolean matches(String token);
+    boolean isOptional();
+  }
+
+  private static class PatternStep implements Step {
+    private final Matcher matcher;
+    private final boolean optional;
+
+    PatternStep(final Pattern pattern, final boolean optional) {
+      this.matcher = pattern.matcher("");
+      this.optional = optional;
+    }
+
+    @Override
+    public boolean matches(final String token) {
+      return matcher.reset(token).matches();
+    }
+
+    @Override
+    public boolean isOptional() {
+      return optional;
+    }
+  }
+
+  private static class WordStep implements Step {
+    private final String word;
+
+    WordStep(final String word) {
+      this.word = word;
+    }
+
+    @Override
+    public boolean matches(final String token) {
+      return word.equalsIgnoreCase(token);
+    }
+
+    @Override
+    public boolean isOptional() {
+      return false;
+    }
+  }
+
+  /**
+   * Returns start (inclusive) and end (exclusive) of the first match of the pattern sequence,
+   * or null if there is none, or if the sequence is empty. Optional patterns are skipped when they
+   * don't match.
+   */
+  public Pair<Integer, Integer> findPatternSequence(final List<Pair<Pattern, Boolean>> patOptional) {
+    final Step[] steps = new Step[patOptional.size()];
+    for(int i = 0; i < steps.length; i++)
+      steps[i] = new PatternStep(patOptional.get(i).getOne(), patOptional.get(i).getTwo());
+    return find(steps);
+  }
+
+  public Pair<Integer, Integer> findAuthor(final String author) {
+    return findPatternSequence(PDFToCRFInput.authorToPatternOptPair(author));
+  }
+
+  /**
+   * Returns start (inclusive) and end (exclusive) of the first occurrence of the string, or null
+   * if it's not there. Words of the string must match whole tokens, ignoring case.
+   */
+  public Pair<Integer, Integer> findString(String toFind) {
+    toFind = StringUtils.normalize(toFind);
+    if(tokens.length == 0 || toFind.length() == 0)
+      return null;
+    final String[] words = toFind.split(" ");
+    if(words.length == 0) // can happen if toFind is just spaces
+      return null;
+
+    final Step[] steps = new Step[words.length];
+    for(int i = 0; i < steps.length; i++)
+      steps[i] = new WordStep(words[i]);
+    return find(steps);
+  }
+
+  private Pair<Integer, Integer> find(final Step[] steps) {
+    final int m = steps.length;
+    if(m == 0) // findPatternEnd() treats an empty pattern as an error, so it never matches
+      return null;
+
+    // starts[p] is the start of a partial match that has to match step p against the next token,
+    // or -1 if there is none. Partial matches that meet in the same step continue the same way,
+    // so we only keep the one that started first.
+    int[] starts = new int[m + 1];
+    int[] nextStarts = new int[m + 1];
+    Arrays.fill(starts, -1);
+
+    int bestStart = -1;
+    int bestEnd = -1;
+    for(int s = 0; s < tokens.length; s++) {
+      if(bestStart < 0)
+        starts[0] = s;
+
+      Arrays.fill(nextStarts, -1);
+      boolean active = false;
+      for(int p = 0; p < m; p++) {
+        final int start = starts[p];
+        if(start < 0 || (bestStart >= 0 && start > bestStart))
+          continue;
+
+        int q = p;
+        while(true) {
+          if(q == m) { // skipped the remaining steps
+            if(bestStart < 0 || start < bestStart) {
+              bestStart = start;
+              bestEnd = s;
+            }
+            break;
+          }
+          if(steps[q].matches(tokens[s])) {
+            if(nextStarts[q + 1] < 0 || start < nextStarts[q + 1])
+              nextStarts[q + 1] = start;
+            active = true;
+            break;
+          }
+          if(!steps[q].isOptional())
+            break;
+          q++;
+        }
+      }
+
+      final int[] temp = starts;
+      starts = nextStarts;
+      nextStarts = temp;
+
+      if(starts[m] >= 0) {
+        if(bestStart < 0 || starts[m] < bestStart) {
+          bestStart = starts[m];
+          bestEnd = s + 1;
+        }
+        starts[m] = -1;
+      }
+
+      if(!active && bestStart >= 0)
+        break;
+    }
+
+    return bestStart < 0 ? null : Tuples.pair(bestStart, bestEnd);
+  }
+}
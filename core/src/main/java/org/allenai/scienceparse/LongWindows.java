@@ -0,0 +1,68 @@
+package org.allenai.scienceparse;
+
+import java.io.IOException;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Up to Integer.MAX_VALUE longs, split into LongBuffers of a fixed size. A single memory mapping
+ * can't be bigger than 2GB, so a cache file that holds more than that is mapped one window at a
+ * time. The window size is a power of two, so finding a long takes a shift and a mask.
+ */
+final class LongWindows {
+  /** 2^27 longs, or 1GB, per window */
+  static final int DEFAULT_WINDOW_SHIFT = 27;
+
+  private final LongBuffer[] windows;
+  private final int windowShift;
+  private final int windowMask;
+  private final int size;
+
+  private LongWindows(final LongBuffer[] windows, final int windowShift, final int size) {
+    this.windows = windows;
+    this.windowShift = windowShift;
+    this.windowMask = (1 << windowShift) - 1;
+    this.size = size;
+  }
+
+  static LongWindows wrap(final long[] longs) {
+    return wrap(longs, DEFAULT_WINDOW_SHIFT);
+  }
+
+  static LongWindows wrap(final long[] longs, final int windowShift) {
+    final LongBuffer[] windows = new LongBuffer[windowCount(longs.length, windowShift)];
+    for(int w = 0; w < windows.length; w++) {
+      final int start = w << windowShift;
+      windows[w] = LongBuffer.wrap(longs, start, Math.min(1 << windowShift, longs.length - start)).slice();
+    }
+    return new LongWindows(windows, windowShift, longs.length);
+  }
+
+  /** Maps count longs from the channel, starting at the given byte position */
+  static LongWindows map(
+      final FileChannel channel,
+      final long position,
+      final int count,
+      final int windowShift
+  ) throws IOException {
+    final LongBuffer[] windows = new LongBuffer[windowCount(count, windowShift)];
+    for(int w = 0; w < windows.length; w++) {
+      final long start = (long)w << windowShift;
+      final long longs = Math.min(1L << windowShift, count - start);
+      windows[w] = channel.map(FileChannel.MapMode.READ_ONLY, position + 8 * start, 8 * longs).asLongBuffer();
+    }
+    return new LongWindows(windows, windowShift, count);
+  }
+
+  private static int windowCount(final int count, final int windowShift) {
+    return (int)(((long)count + (1L << windowShift) - 1) >>> windowShift);
+  }
+
+  long get(final int index) {
+    return windows[index >>> windowShift].get(index & windowMask);
+  }
+
+  int size() {
+    return size;
+  }
+}
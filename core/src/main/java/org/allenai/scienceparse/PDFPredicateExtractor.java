@@ -83,7 +83,10 @@ public class PDFPredicateExtractor implements CRFPredicateExtractor<PaperToken,
   }
 
   public static double smoothFreq(String tok, ObjectDoubleHashMap<String> hm) {
-    double freq = hm.get(tok);
+    return smoothFreq(hm.get(tok));
+  }
+
+  public static double smoothFreq(double freq) {
     if (freq > 0.0)
       freq -= 0.6;
     return Math.log10(freq + 0.1);
@@ -160,6 +163,8 @@ public class PDFPredicateExtractor implements CRFPredicateExtractor<PaperToken,
       ObjectDoubleHashMap<String> m = new ObjectDoubleHashMap<String>();
       float prevFont = -10.0f;
       float nextFont = -10.0f;
+      int prevFontId = -1;
+      int nextFontId = -1;
       float prevHeight = -10.0f;
       float nextHeight = -10.0f;
       float prevY = 0.0f;
@@ -175,24 +180,28 @@ public class PDFPredicateExtractor implements CRFPredicateExtractor<PaperToken,
         if (i != 1) {
           prevLine = elems.get(i - 1).getLine();
           prevFont = getFixedFont(elems.get(i - 1));
+          prevFontId = elems.get(i - 1).getPdfToken().fontId();
           prevHeight = height(elems.get(i - 1).getPdfToken());
           prevY = getY(elems.get(i - 1), false);
         }
         if (i != elems.size() - 2) {
           nextLine = elems.get(i + 1).getLine();
           nextFont = getFixedFont(elems.get(i + 1));
+          nextFontId = elems.get(i + 1).getPdfToken().fontId();
           nextHeight = height(elems.get(i + 1).getPdfToken());
           nextY = getY(elems.get(i + 1), true);
         } else {
           nextY = getY(elems.get(i), false) + height(elems.get(i).getPdfToken()); //guess that next line is height units below
         }
         float font = getFixedFont(elems.get(i));
+        int fontId = elems.get(i).getPdfToken().fontId();
         float h = height(elems.get(i).getPdfToken());
         int line = elems.get(i).getLine();
         //font-change forward (fcf) or backward (fcb):
-        if (font != prevFont)
+        //Tokens with the same font id always have the same size, so we only compare sizes across fonts.
+        if (fontId != prevFontId && font != prevFont)
           m.put("%fcb", 1.0); //binary, 1.0 if there is a font change forward, 0.0 otherwise
-        if (font != nextFont)
+        if (fontId != nextFontId && font != nextFont)
           m.put("%fcf", 1.0); //font change backward
         if (line != prevLine) {
           m.put("%lcb", 1.0); //line change backward
@@ -238,14 +247,17 @@ public class PDFPredicateExtractor implements CRFPredicateExtractor<PaperToken,
         if (line <= 2)
           m.put("%first3lines", 1.0); //is it in the first three lines:
         if (lmFeats != null) { //how well does token match title/author gazeetters
-          m.put("%tfreq", smoothFreq(tok, this.lmFeats.titleBow));
-          m.put("%tffreq", smoothFreq(tok, this.lmFeats.titleFirstBow));
-          m.put("%tlfreq", smoothFreq(tok, this.lmFeats.titleLastBow));
-          m.put("%afreq", smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.authorBow));
-          m.put("%affreq", smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.authorFirstBow));
-          m.put("%alfreq", smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.authorLastBow));
-          m.put("%bfreq", smoothFreq(tok, this.lmFeats.backgroundBow));
-          m.put("%bafreq", smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.backgroundBow));
+          final ParserLMFeatures.Frequencies freqs = this.lmFeats.frequencies();
+          final int row = freqs.row(tok);
+          final int authorRow = freqs.row(Parser.fixupAuthors(tok));
+          m.put("%tfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.TITLE));
+          m.put("%tffreq", freqs.smoothFreq(row, ParserLMFeatures.Column.TITLE_FIRST));
+          m.put("%tlfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.TITLE_LAST));
+          m.put("%afreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.AUTHOR));
+          m.put("%affreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.AUTHOR_FIRST));
+          m.put("%alfreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.AUTHOR_LAST));
+          m.put("%bfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.BACKGROUND));
+          m.put("%bafreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.BACKGROUND));
         }
 
         // add the token itself as a feature
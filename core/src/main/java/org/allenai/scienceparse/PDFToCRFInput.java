@@ -95,13 +95,7 @@ public class PDFToCRFInput {
       // isn't enabled.
       log.debug("Finding {}\nin {}", patternToString(patOptional), seqToString(seq));
     }
-    for (int i = 0; i < seq.size(); i++) {
-      int end = -1;
-      if ((end = findPatternEnd(seq, patOptional, i, 0)) >= 0) {
-        return Tuples.pair(i, end);
-      }
-    }
-    return null;
+    return new HeaderAligner(seq).findPatternSequence(patOptional);
   }
 
   /**
@@ -112,26 +106,7 @@ public class PDFToCRFInput {
    * @return
    */
   public static Pair<Integer, Integer> findString(List<String> seq, String toFind) {
-    toFind = StringUtils.normalize(toFind);
-    if (seq.size() == 0 || toFind.length() == 0)
-      return null;
-    String[] toks = toFind.split(" ");
-    if (toks.length == 0) { //can happen if toFind is just spaces
-      return null;
-    }
-    int nextToMatch = 0;
-    for (int i = 0; i < seq.size(); i++) {
-      String s = StringUtils.normalize(seq.get(i));
-      if (toks[nextToMatch].equalsIgnoreCase(s)) {
-        nextToMatch++;
-      } else {
-        i -= nextToMatch; //start back at char after start of match
-        nextToMatch = 0;
-      }
-      if (nextToMatch == toks.length)
-        return Tuples.pair(i + 1 - toks.length, i + 1);
-    }
-    return null;
+    return new HeaderAligner(seq).findString(toFind);
   }
 
   public static List<Pair<Pattern, Boolean>> authorToPatternOptPair(String author) {
@@ -186,8 +161,7 @@ public class PDFToCRFInput {
   }
 
   public static Pair<Integer, Integer> findAuthor(List<String> seq, String toFind) {
-    List<Pair<Pattern, Boolean>> pats = authorToPatternOptPair(toFind);
-    return findPatternSequence(seq, pats);
+    return new HeaderAligner(seq).findAuthor(toFind);
   }
 
   private static void addLineTokens(List<PaperToken> accumulator, List<PDFLine> lines, final int pg) {
@@ -291,12 +265,23 @@ public class PDFToCRFInput {
           final String target,
           final String labelStem,
           final boolean isAuthor
+  ) {
+    return findAndLabelWith(paperId, new HeaderAligner(asStringList(seq)), seqLabeled, target, labelStem, isAuthor);
+  }
+
+  private static boolean findAndLabelWith(
+          final String paperId,
+          final HeaderAligner aligner,
+          final List<Pair<PaperToken, String>> seqLabeled,
+          final String target,
+          final String labelStem,
+          final boolean isAuthor
   ) {
     Pair<Integer, Integer> loc = null;
     if (isAuthor)
-      loc = findAuthor(asStringList(seq), target);
+      loc = aligner.findAuthor(target);
     else
-      loc = findString(asStringList(seq), target);
+      loc = aligner.findString(target);
     if (loc == null) {
       log.debug("{}: could not find {} string {} in paper.", paperId, labelStem, target);
       return false;
@@ -346,8 +331,9 @@ public class PDFToCRFInput {
       outTmp.add(Tuples.pair(t, "O"));
     }
 
-    truthAuthorNames.forEach((String s) -> findAndLabelWith(paperId, toks, outTmp, s, ExtractedMetadata.authorTag, true));
-    if (!findAndLabelWith(paperId, toks, outTmp, truthTitle, ExtractedMetadata.titleTag, false)) //must have title to be valid
+    final HeaderAligner aligner = new HeaderAligner(asStringList(toks));
+    truthAuthorNames.forEach((String s) -> findAndLabelWith(paperId, aligner, outTmp, s, ExtractedMetadata.authorTag, true));
+    if (!findAndLabelWith(paperId, aligner, outTmp, truthTitle, ExtractedMetadata.titleTag, false)) //must have title to be valid
       return null;
     val out = new ArrayList<Pair<PaperToken, String>>();
     out.add(Tuples.pair(PaperToken.generateStartStopToken(), "<S>"));
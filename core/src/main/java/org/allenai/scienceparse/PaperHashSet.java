@@ -0,0 +1,220 @@
+package org.allenai.scienceparse;
+
+import java.io.IOException;
+
+/**
+ * The papers in the gazetteer, as 64-bit hashes. The exact set takes eight bytes per paper. The
+ * Bloom filter takes much less, at the price of sometimes finding a paper that isn't there.
+ *
+ * Both keep their data in LongWindows, so they can be memory-mapped from a cache file.
+ */
+public abstract class PaperHashSet {
+  public abstract boolean contains(long hash);
+
+  /** The number of papers in the set */
+  public abstract int size();
+
+  /** Identifies the kind of set in cache files */
+  abstract int kind();
+
+  /** Everything fromData() needs to recreate the set */
+  abstract LongWindows data();
+
+  static PaperHashSet fromData(final int kind, final LongWindows data) throws IOException {
+    switch(kind) {
+      case Exact.KIND:
+        return new Exact(data);
+      case BlockedBloomFilter.KIND:
+        return new BlockedBloomFilter(data);
+      default:
+        throw new IOException("Unknown kind of paper set: " + kind);
+    }
+  }
+
+  public interface Factory {
+    PaperHashSet build(long[] sortedUniqueHashes);
+
+    /** Goes into the name of cache files, so different kinds of sets don't share a cache */
+    String name();
+  }
+
+  public static Factory exact() {
+    return new Factory() {
+      @Override
+      public PaperHashSet build(final long[] sortedUniqueHashes) {
+        return new Exact(LongWindows.wrap(sortedUniqueHashes));
+      }
+
+      @Override
+      public String name() {
+        return "exact";
+      }
+    };
+  }
+
+  public static Factory bloomFilter(final double falsePositiveRate) {
+    if(falsePositiveRate <= 0 || falsePositiveRate >= 1)
+      throw new IllegalArgumentException("False positive rate must be between 0 and 1");
+    return new Factory() {
+      @Override
+      public PaperHashSet build(final long[] sortedUniqueHashes) {
+        return BlockedBloomFilter.build(sortedUniqueHashes, falsePositiveRate);
+      }
+
+      @Override
+      public String name() {
+        return "bloom" + falsePositiveRate;
+      }
+    };
+  }
+
+  /** A Bloom filter with the given false positive rate, or the exact set if the rate is 0 */
+  public static Factory forFalsePositiveRate(final double falsePositiveRate) {
+    return falsePositiveRate == 0 ? exact() : bloomFilter(falsePositiveRate);
+  }
+
+  /** A sorted array of hashes, searched with binary search */
+  public static class Exact extends PaperHashSet {
+    static final int KIND = 0;
+
+    private final LongWindows sortedHashes;
+
+    Exact(final LongWindows sortedHashes) {
+      this.sortedHashes = sortedHashes;
+    }
+
+    @Override
+    public boolean contains(final long hash) {
+      int low = 0;
+      int high = sortedHashes.size() - 1;
+      while (low <= high) {
+        final int mid = (low + high) >>> 1;
+        final long midHash = sortedHashes.get(mid);
+        if (midHash < hash)
+          low = mid + 1;
+        else if (midHash > hash)
+          high = mid - 1;
+        else
+          return true;
+      }
+      return false;
+    }
+
+    @Override
+    public int size() {
+      return sortedHashes.size();
+    }
+
+    @Override
+    int kind() {
+      return KIND;
+    }
+
+    @Override
+    LongWindows data() {
+      return sortedHashes;
+    }
+  }
+
+  /**
+   * A Bloom filter that puts all bits of a paper into the same 512-bit block, so a lookup touches
+   * only one cache line. The data is the number of hash functions, the number of papers, and then
+   * the blocks.
+   */
+  public static class BlockedBloomFilter extends PaperHashSet {
+    static final int KIND = 1;
+    private static final int BLOCK_WORDS = 8;
+    private static final int HEADER_WORDS = 2;
+
+    private final LongWindows data;
+    private final int hashFunctions;
+    private final int papers;
+    private final long blocks;
+
+    BlockedBloomFilter(final LongWindows data) throws IOException {
+      if(data.size() < HEADER_WORDS + BLOCK_WORDS || (data.size() - HEADER_WORDS) % BLOCK_WORDS != 0)
+        throw new IOException("Bloom filter has invalid size " + data.size());
+      this.data = data;
+      this.hashFunctions = (int)data.get(0);
+      this.papers = (int)data.get(1);
+      this.blocks = (data.size() - HEADER_WORDS) / BLOCK_WORDS;
+    }
+
+    static BlockedBloomFilter build(final long[] hashes, final double falsePositiveRate) {
+      final double ln2 = Math.log(2);
+      final double bitsPerPaper = -Math.log(falsePositiveRate) / (ln2 * ln2);
+      final int hashFunctions = Math.max(1, Math.min(16, (int)Math.round(bitsPerPaper * ln2)));
+      // Blocking makes the filter a little less accurate than a plain one. 10% more bits make up
+      // for most of that.
+      final long bits = (long)Math.ceil(Math.max(1, hashes.length) * bitsPerPaper * 1.1);
+      final long blocks = (bits + BLOCK_WORDS * 64 - 1) / (BLOCK_WORDS * 64);
+      if(HEADER_WORDS + blocks * BLOCK_WORDS > Integer.MAX_VALUE)
+        throw new IllegalArgumentException("Bloom filter would be too large");
+
+      final long[] words = new long[(int)(HEADER_WORDS + blocks * BLOCK_WORDS)];
+      words[0] = hashFunctions;
+      words[1] = hashes.length;
+      for(final long hash : hashes) {
+        final long h = mix(hash);
+        final int base = blockStart(h, blocks);
+        long bit = mix(h + 0x9E3779B97F4A7C15L);
+        final long step = (h << 1) | 1;
+        for(int i = 0; i < hashFunctions; i++) {
+          final int b = (int)(bit >>> 55); // top 9 bits pick one of 512
+          words[base + (b >>> 6)] |= 1L << b;
+          bit += step;
+        }
+      }
+
+      try {
+        return new BlockedBloomFilter(LongWindows.wrap(words));
+      } catch(final IOException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    /** The hash codes in CheckReferences are far from random, so we scramble them first. */
+    private static long mix(long h) {
+      h ^= h >>> 33;
+      h *= 0xff51afd7ed558ccdL;
+      h ^= h >>> 33;
+      h *= 0xc4ceb9fe1a85ec53L;
+      h ^= h >>> 33;
+      return h;
+    }
+
+    private static int blockStart(final long h, final long blocks) {
+      return HEADER_WORDS + (int)(((h >>> 32) * blocks) >>> 32) * BLOCK_WORDS;
+    }
+
+    @Override
+    public boolean contains(final long hash) {
+      final long h = mix(hash);
+      final int base = blockStart(h, blocks);
+      long bit = mix(h + 0x9E3779B97F4A7C15L);
+      final long step = (h << 1) | 1;
+      for(int i = 0; i < hashFunctions; i++) {
+        final int b = (int)(bit >>> 55);
+        if((data.get(base + (b >>> 6)) & (1L << b)) == 0)
+          return false;
+        bit += step;
+      }
+      return true;
+    }
+
+    @Override
+    public int size() {
+      return papers;
+    }
+
+    @Override
+    int kind() {
+      return KIND;
+    }
+
+    @Override
+    LongWindows data() {
+      return data;
+    }
+  }
+}
@@ -0,0 +1,31 @@
+package org.allenai.scienceparse;
+
+/**
+ * Receives timing information from {@link Parser#doParse(java.io.InputStream)}. Listeners are
+ * called on the parsing thread, so they must be cheap and thread-safe.
+ */
+public interface ParseListener {
+  /** The stages of a parse, in the order in which they run */
+  enum Stage {
+    LOAD_PDF,
+    EXTRACT_TEXT,
+    HEADER_CRF,
+    REFERENCES,
+    CITATIONS,
+    ABSTRACT,
+    SECTIONS
+  }
+
+  ParseListener NONE = new ParseListener() { };
+
+  default void stageFinished(final Stage stage, final long elapsedNanos) { }
+
+  /** Called when a regular expression took too long, and part of the output is missing */
+  default void regexTimedOut() { }
+
+  /** Called once per parse that took too long, when we interrupt it */
+  default void parseTimedOut() { }
+
+  /** Called when a parse kept going long after we interrupted it, and we stopped its thread */
+  default void parseKilled() { }
+}
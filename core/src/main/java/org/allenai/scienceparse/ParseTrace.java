@@ -0,0 +1,111 @@
+package org.allenai.scienceparse;
+
+import lombok.Data;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Records how long each step of a single parse took, and how much memory it allocated. Pass one to
+ * {@link Parser#doParse(java.io.InputStream, int, ParseTrace)} to find out why one particular
+ * paper is slow.
+ *
+ * A trace belongs to one parse, and must only be used from the thread that runs it.
+ */
+public class ParseTrace {
+  @Data
+  public static class Span {
+    public final String name;
+    public final long elapsedNanos;
+    /** Bytes allocated by the parsing thread during this span, or -1 if the JVM can't tell us */
+    public final long allocatedBytes;
+  }
+
+  /** A trace that records nothing, and costs almost nothing */
+  public static final ParseTrace DISABLED = new ParseTrace(false);
+
+  private static final com.sun.management.ThreadMXBean allocationBean;
+  static {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if(
+        bean instanceof com.sun.management.ThreadMXBean &&
+        ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemorySupported() &&
+        ((com.sun.management.ThreadMXBean)bean).isThreadAllocatedMemoryEnabled()
+    ) {
+      allocationBean = (com.sun.management.ThreadMXBean)bean;
+    } else {
+      allocationBean = null;
+    }
+  }
+
+  private static long allocatedBytes() {
+    if(allocationBean == null)
+      return -1;
+    return allocationBean.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  private final boolean enabled;
+  private final List<Span> spans;
+
+  public ParseTrace() {
+    this(true);
+  }
+
+  private ParseTrace(final boolean enabled) {
+    this.enabled = enabled;
+    this.spans = enabled ? new ArrayList<>() : Collections.emptyList();
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  /** The finished spans, in the order in which they finished */
+  public List<Span> getSpans() {
+    return Collections.unmodifiableList(spans);
+  }
+
+  /** A span that has started, but not finished yet */
+  public static class OpenSpan {
+    private static final OpenSpan NOOP = new OpenSpan(null, null, 0, 0);
+
+    private final ParseTrace trace;
+    private final String name;
+    private final long startNanos;
+    private final long startAllocatedBytes;
+
+    private OpenSpan(
+        final ParseTrace trace,
+        final String name,
+        final long startNanos,
+        final long startAllocatedBytes
+    ) {
+      this.trace = trace;
+      this.name = name;
+      this.startNanos = startNanos;
+      this.startAllocatedBytes = startAllocatedBytes;
+    }
+
+    /** Records the span in its trace. Spans that never end are not recorded. */
+    public void end() {
+      if(trace == null)
+        return;
+
+      final long endAllocatedBytes = allocatedBytes();
+      final long elapsedNanos = System.nanoTime() - startNanos;
+      trace.spans.add(new Span(
+          name,
+          elapsedNanos,
+          startAllocatedBytes < 0 ? -1 : endAllocatedBytes - startAllocatedBytes));
+    }
+  }
+
+  public OpenSpan start(final String name) {
+    if(!enabled)
+      return OpenSpan.NOOP;
+    return new OpenSpan(this, name, System.nanoTime(), allocatedBytes());
+  }
+}
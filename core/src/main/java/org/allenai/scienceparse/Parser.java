@@ -36,6 +36,7 @@ import scala.compat.java8.ScalaStreamSupport;
 import scala.compat.java8.OptionConverters;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.File;
@@ -44,10 +45,6 @@ import java.io.FileOutputStream;
 import java.io.FileReader;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.RandomAccessFile;
-import java.nio.channels.Channels;
-import java.nio.channels.FileChannel;
-import java.nio.channels.FileLock;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.text.Normalizer;
@@ -138,6 +135,20 @@ public class Parser {
           final File modelFile,
           final File gazetteerFile,
           final File bibModelFile
+  ) throws Exception {
+    this(modelFile, gazetteerFile, bibModelFile, PaperHashSet.exact());
+  }
+
+  /**
+   * @param gazetteerSet how to keep the papers from the gazetteer in memory. A Bloom filter takes
+   *                     much less memory than the exact set, but sometimes finds papers that
+   *                     aren't there.
+   */
+  public Parser(
+          final File modelFile,
+          final File gazetteerFile,
+          final File bibModelFile,
+          final PaperHashSet.Factory gazetteerSet
   ) throws Exception {
     // Load main model in one thread, and the rest in another thread, to speed up startup.
     final AtomicReference<Exception> exceptionThrownByModelLoaderThread = new AtomicReference<>();
@@ -162,37 +173,15 @@ public class Parser {
     // Load non-main model stuff
     logger.info("Loading gazetteer from {}", gazetteerFile);
     logger.info("Loading bib model from {}", bibModelFile);
-    try(
-      final InputStream gazetteerIs = new FileInputStream(gazetteerFile);
-      final DataInputStream bibModelIs = new DataInputStream(new FileInputStream(bibModelFile))
-    ) {
-      // Loading the gazetteer takes a long time, so we create a cached binary version of it that
-      // loads very quickly. If that version is already there, we use it. Otherwise, we create it.
-      val gazCacheFilename = String.format(
-          "%s-%08x.gazetteerCache.bin",
-          gazetteerFile.getName(),
-          gazetteerFile.getCanonicalPath().hashCode());
-      val gazCachePath = Paths.get(System.getProperty("java.io.tmpdir"), gazCacheFilename);
-      try (
-        final RandomAccessFile gazCacheFile = new RandomAccessFile(gazCachePath.toFile(), "rw");
-        final FileChannel gazCacheChannel = gazCacheFile.getChannel();
-        final FileLock gazCacheLock = gazCacheChannel.lock();
-      ) {
-        if (gazCacheChannel.size() == 0) {
-          logger.info("Creating gazetteer cache at {}", gazCachePath);
-          referenceExtractor =
-              ExtractReferences.createAndWriteGazCache(
-                  gazetteerIs,
-                  bibModelIs,
-                  Channels.newOutputStream(gazCacheChannel));
-        } else {
-          logger.info("Reading from gazetteer cache at {}", gazCachePath);
-          referenceExtractor = new ExtractReferences(
-              gazetteerIs,
-              bibModelIs,
-              Channels.newInputStream(gazCacheChannel));
-        }
-      }
+    try(final DataInputStream bibModelIs = new DataInputStream(new FileInputStream(bibModelFile))) {
+      // Loading the gazetteer takes a long time, so we keep a binary version of it in a cache
+      // file that every process on this machine can memory-map.
+      final CheckReferences cr =
+          CheckReferences.loadCached(
+              gazetteerFile,
+              Paths.get(System.getProperty("java.io.tmpdir")),
+              gazetteerSet);
+      referenceExtractor = new ExtractReferences(cr, bibModelIs);
     }
     logger.info("Loaded gazetteer from {}", gazetteerFile);
     logger.info("Loaded bib model from {}", bibModelFile);
@@ -267,6 +256,16 @@ public class Parser {
       int headerMax,
       boolean checkAuthors
   ) throws IOException {
+    return labelSequence(paperId, extractSequence(paperId, is, ext, headerMax), labeledData, checkAuthors);
+  }
+
+  /** Returns the first headerMax tokens of the paper, or an empty list if extraction fails */
+  private static List<PaperToken> extractSequence(
+      final String paperId,
+      final InputStream is,
+      final PDFExtractor ext,
+      final int headerMax
+  ) {
     logger.debug("{}: starting", paperId);
 
     final PDFDoc doc;
@@ -274,16 +273,24 @@ public class Parser {
       doc = ext.extractFromInputStream(is);
     } catch(final Exception e) {
       logger.warn("{} failed: {}", paperId, e.toString());
-      return null;
+      return Collections.emptyList();
     }
     if (doc == null) {
-      return null;
+      return Collections.emptyList();
     }
 
-    List<PaperToken> seq = PDFToCRFInput.getSequence(doc);
+    final List<PaperToken> seq = PDFToCRFInput.getSequence(doc);
+    return new ArrayList<>(seq.subList(0, Math.min(seq.size(), headerMax)));
+  }
+
+  private static List<Pair<PaperToken, String>> labelSequence(
+      final String paperId,
+      final List<PaperToken> seq,
+      final LabeledData labeledData,
+      final boolean checkAuthors
+  ) {
     if (seq.size() == 0)
       return null;
-    seq = seq.subList(0, Math.min(seq.size(), headerMax));
     List<Pair<PaperToken, String>> labeledPaper =
         PDFToCRFInput.labelMetadata(paperId, seq, labeledData);
     if (labeledPaper != null && checkAuthors) {
@@ -318,9 +325,11 @@ public class Parser {
     final int maxFiles,
     final int minYear,
     final boolean checkAuthors,
-    final Set<String> excludeIDs
+    final Set<String> excludeIDs,
+    final TokenSequenceStore tokenStore
   ) throws IOException {
     final PDFExtractor ext = new PDFExtractor();
+    final AtomicInteger storedCount = new AtomicInteger();
 
     // input we need
     final int parallelism = Runtime.getRuntime().availableProcessors() * 2;
@@ -365,14 +374,30 @@ public class Parser {
             try {
               paperId2startTime.put(paper.paperId(), System.currentTimeMillis());
               final List<Pair<PaperToken, String>> result;
-              try(final InputStream is = paper.inputStream()) {
-                result = getPaperLabels(
-                    paper.paperId(),
-                    is,
-                    labels,
-                    ext,
-                    headerMax,
-                    checkAuthors);
+              if(tokenStore == null) {
+                try(final InputStream is = paper.inputStream()) {
+                  result = getPaperLabels(
+                      paper.paperId(),
+                      is,
+                      labels,
+                      ext,
+                      headerMax,
+                      checkAuthors);
+                }
+              } else {
+                final byte[] bytes;
+                try(final InputStream is = paper.inputStream()) {
+                  bytes = org.apache.commons.io.IOUtils.toByteArray(is);
+                }
+                final String sha = Utilities.shaForBytes(bytes);
+                List<PaperToken> seq = tokenStore.get(sha);
+                if(seq == null) {
+                  seq = extractSequence(paper.paperId(), new ByteArrayInputStream(bytes), ext, headerMax);
+                  tokenStore.put(sha, seq);
+                } else {
+                  storedCount.incrementAndGet();
+                }
+                result = labelSequence(paper.paperId(), seq, labels, checkAuthors);
               }
 
               int tried = triedCount.incrementAndGet();
@@ -474,6 +499,8 @@ public class Parser {
             triedCount.get(),
             usedPaperIds.size(),
             usedPaperIds.size() * 100.0 / triedCount.doubleValue()));
+    if(tokenStore != null)
+      logger.info("Took {} of these papers from the token sequence store", storedCount.get());
 
     return new LabelingOutput(results, usedPaperIds.asUnmodifiable());
   }
@@ -559,17 +586,25 @@ public class Parser {
       };
     }
 
-    // set up early stopping so that we stop training after 50 down-iterations
-    final TrainCriterionEval<CRFModel<String, String, String>> earlyStoppingEvaluator =
-            new TrainCriterionEval<>(testEvalFn);
-    earlyStoppingEvaluator.maxNumDipIters = 100;
-    trainOpts.iterCallback = earlyStoppingEvaluator;
-
-    // training
-    CRFTrainer<String, String, String> trainer =
-      new CRFTrainer<>(trainLabeledData, predExtractor, trainOpts);
-    trainer.train(trainLabeledData);
-    final CRFModel<String, String, String> crfModel = earlyStoppingEvaluator.bestModel;
+    final ParserLMFeatures finalPlf = plf;
+    final GazetteerFeatures finalGf = gf;
+    final CRFModel<String, String, String> crfModel;
+    try(final TrainingCheckpoints<CRFModel<String, String, String>> checkpoints = scheduleCheckpoints(
+        opts,
+        (dos, model) -> saveModel(
+            dos, model.featureEncoder, model.weights(), finalPlf, finalGf, ExtractReferences.DATA_VERSION))) {
+      // set up early stopping so that we stop training after 50 down-iterations
+      final TrainCriterionEval<CRFModel<String, String, String>> earlyStoppingEvaluator =
+              new TrainCriterionEval<>(checkpoints == null ? testEvalFn : checkpoints.tracking(testEvalFn));
+      earlyStoppingEvaluator.maxNumDipIters = 100;
+      trainOpts.iterCallback = earlyStoppingEvaluator;
+
+      // training
+      CRFTrainer<String, String, String> trainer =
+        new CRFTrainer<>(trainLabeledData, predExtractor, trainOpts);
+      trainer.train(trainLabeledData);
+      crfModel = earlyStoppingEvaluator.bestModel;
+    }
 
     Vector weights = crfModel.weights();
     Parallel.shutdownExecutor(evalMrOpts.executorService, Long.MAX_VALUE);
@@ -605,13 +640,29 @@ public class Parser {
       ParseOpts opts,
       final UnifiedSet<String> excludeIDs
   ) throws IOException {
-    final LabelingOutput labelingOutput = labelFromGroundTruth(
-        labeledTrainingData,
-        opts.headerMax,
-        opts.documentCount,
-        opts.minYear,
-        opts.checkAuthors,
-        excludeIDs);
+    final LabelingOutput labelingOutput;
+    if(opts.tokenStoreDirectory == null) {
+      labelingOutput = labelFromGroundTruth(
+          labeledTrainingData,
+          opts.headerMax,
+          opts.documentCount,
+          opts.minYear,
+          opts.checkAuthors,
+          excludeIDs,
+          null);
+    } else {
+      try(final TokenSequenceStore tokenStore =
+            TokenSequenceStore.open(Paths.get(opts.tokenStoreDirectory), opts.headerMax)) {
+        labelingOutput = labelFromGroundTruth(
+            labeledTrainingData,
+            opts.headerMax,
+            opts.documentCount,
+            opts.minYear,
+            opts.checkAuthors,
+            excludeIDs,
+            tokenStore);
+      }
+    }
     ParserLMFeatures plf = null;
     final PDFPredicateExtractor predExtractor;
     if (opts.gazetteerFile != null) {
@@ -675,17 +726,23 @@ public class Parser {
       };
     }
 
-    // set up early stopping so that we stop training after 50 down-iterations
-    final TrainCriterionEval<CRFModel<String, PaperToken, String>> earlyStoppingEvaluator =
-            new TrainCriterionEval<>(testEvalFn);
-    earlyStoppingEvaluator.maxNumDipIters = 100;
-    trainOpts.iterCallback = earlyStoppingEvaluator;
-
-    // training
-    final CRFTrainer<String, PaperToken, String> trainer =
-      new CRFTrainer<>(trainLabeledData, predExtractor, trainOpts);
-    trainer.train(trainLabeledData);
-    final CRFModel<String, PaperToken, String> crfModel = earlyStoppingEvaluator.bestModel;
+    final ParserLMFeatures finalPlf = plf;
+    final CRFModel<String, PaperToken, String> crfModel;
+    try(final TrainingCheckpoints<CRFModel<String, PaperToken, String>> checkpoints = scheduleCheckpoints(
+        opts,
+        (dos, model) -> saveModel(dos, model.featureEncoder, model.weights(), finalPlf))) {
+      // set up early stopping so that we stop training after 50 down-iterations
+      final TrainCriterionEval<CRFModel<String, PaperToken, String>> earlyStoppingEvaluator =
+              new TrainCriterionEval<>(checkpoints == null ? testEvalFn : checkpoints.tracking(testEvalFn));
+      earlyStoppingEvaluator.maxNumDipIters = 100;
+      trainOpts.iterCallback = earlyStoppingEvaluator;
+
+      // training
+      final CRFTrainer<String, PaperToken, String> trainer =
+        new CRFTrainer<>(trainLabeledData, predExtractor, trainOpts);
+      trainer.train(trainLabeledData);
+      crfModel = earlyStoppingEvaluator.bestModel;
+    }
 
     final Vector weights = crfModel.weights();
     Parallel.shutdownExecutor(evalMrOpts.executorService, Long.MAX_VALUE);
@@ -719,6 +776,17 @@ public class Parser {
     }
   }
 
+  /** Returns null if opts don't ask for checkpoints. try-with-resources is fine with that. */
+  private static <M> TrainingCheckpoints<M> scheduleCheckpoints(
+    final ParseOpts opts,
+    final TrainingCheckpoints.ModelWriter<M> writer
+  ) {
+    if(opts.checkpointFile == null)
+      return null;
+    logger.info("Writing checkpoints to {} every {} seconds", opts.checkpointFile, opts.checkpointIntervalMs / 1000);
+    return new TrainingCheckpoints<>(Paths.get(opts.checkpointFile), opts.checkpointIntervalMs, writer);
+  }
+
   public static <T> void saveModel(
     final DataOutputStream dos,
     final CRFFeatureEncoder<String, T, String> fe,
@@ -737,6 +805,8 @@ public class Parser {
     final GazetteerFeatures gf,
     final String dataVersion
   ) throws IOException {
+    if(plf != null && plf.bagsOfWordsDropped())
+      throw new IllegalStateException("Can't save language model features that were loaded from a model");
     dos.writeUTF(dataVersion);
     fe.stateSpace.save(dos);
     fe.nodeFeatures.save(dos);
@@ -790,8 +860,11 @@ public class Parser {
         throw new IOException("Model file contains unknown class.", e);
       }
     }
-    if(plf != null && logger.isDebugEnabled())
-      plf.logState();
+    if(plf != null) {
+      if(logger.isDebugEnabled())
+        plf.logState();
+      plf.dropBagsOfWords();
+    }
 
     val predExtractor = new PDFPredicateExtractor(plf);
     val featureEncoder = new CRFFeatureEncoder<String, PaperToken, String>
@@ -903,11 +976,53 @@ public class Parser {
             collect(Collectors.toList());
   }
 
+  private volatile ParseListener listener = ParseListener.NONE;
+  private volatile DocumentBudget budget = DocumentBudget.UNLIMITED;
+
+  /** Sets the listener that gets told about the stages of every parse */
+  public void setListener(final ParseListener listener) {
+    this.listener = listener == null ? ParseListener.NONE : listener;
+  }
+
+  /** Sets the limits on the documents this parser accepts. The default is no limits. */
+  public void setBudget(final DocumentBudget budget) {
+    this.budget = budget == null ? DocumentBudget.UNLIMITED : budget;
+  }
+
+  public DocumentBudget getBudget() {
+    return budget;
+  }
+
+  /** Reports that the stage that started at startTime finished, and returns the current time */
+  private long stageFinished(final ParseListener.Stage stage, final long startTime) {
+    final long now = System.nanoTime();
+    listener.stageFinished(stage, now - startTime);
+    return now;
+  }
+
+  /**
+   * Reports a timeout that cost us part of the output. ParsingTimeouts are not reported here,
+   * because they follow from the interruption in doParseWithTimeout(), which already reported
+   * the parse as timed out.
+   */
+  private void timedOut(final RuntimeException e) {
+    if(e instanceof RegexWithTimeout.RegexTimeout)
+      listener.regexTimedOut();
+  }
+
   public static class ParsingTimeout extends RuntimeException { }
   private final Timer parserKillerTimer = new Timer("Science-parse killer timer", true);
   private final MutableIntSet parseNumbersInProgress = IntSets.mutable.empty();
   private final AtomicInteger nextParseNumber = new AtomicInteger();
   public ExtractedMetadata doParseWithTimeout(final InputStream is, final long timeoutInMs) throws IOException {
+    return doParseWithTimeout(is, timeoutInMs, ParseTrace.DISABLED);
+  }
+
+  public ExtractedMetadata doParseWithTimeout(
+      final InputStream is,
+      final long timeoutInMs,
+      final ParseTrace trace
+  ) throws IOException {
     final int parseNumber = nextParseNumber.getAndIncrement();
 
     final Thread t = Thread.currentThread();
@@ -918,6 +1033,7 @@ public class Parser {
         synchronized (parseNumbersInProgress) {
           if(parseNumbersInProgress.contains(parseNumber)) {
             logger.info("Killing parsing thread {} because it's taking too long", t.getId());
+            listener.parseKilled();
             t.stop();
             // I know this is dangerous. This is a last resort.
           }
@@ -931,6 +1047,7 @@ public class Parser {
         synchronized (parseNumbersInProgress) {
           if(parseNumbersInProgress.contains(parseNumber)) {
             logger.info("Interrupting parsing thread {} because it's taking too long", t.getId());
+            listener.parseTimedOut();
             t.interrupt();
           }
         }
@@ -947,7 +1064,7 @@ public class Parser {
     parserKillerTimer.schedule(killTaskHard, 3*timeoutInMs);
     try {
       try {
-        result = doParse(is);
+        result = doParse(is, MAXHEADERWORDS, trace);
       } catch(final ThreadDeath e) {
         throw new RuntimeException("Science-parse killer got impatient", e);
       }
@@ -1018,28 +1135,77 @@ public class Parser {
   }
 
   public ExtractedMetadata doParse(final InputStream is, int headerMax) throws IOException {
+    return doParse(is, headerMax, ParseTrace.DISABLED);
+  }
+
+  /**
+   * Same as doParse(InputStream, int), but records where the time and memory went in the given
+   * trace, and attaches the trace to the result.
+   */
+  public ExtractedMetadata doParse(
+      final InputStream is,
+      int headerMax,
+      final ParseTrace trace
+  ) throws IOException {
+    final long stageStart = System.nanoTime();
+    final ParseTrace.OpenSpan span = trace.start("loadPdf");
+    try(final PDDocument pdDoc = loadWithinBudget(is)) {
+      span.end();
+      return doParse(pdDoc, headerMax, trace, stageFinished(ParseListener.Stage.LOAD_PDF, stageStart));
+    }
+  }
+
+  /** Loads the document, and throws DocumentTooLargeException if it is over the budget */
+  private PDDocument loadWithinBudget(final InputStream is) throws IOException {
+    final DocumentBudget budget = this.budget;
+    final PDDocument pdDoc = PDDocument.load(budget.limit(is), budget.memoryUsageSetting());
+    try {
+      budget.checkPages(pdDoc.getNumberOfPages());
+    } catch(final DocumentBudget.DocumentTooLargeException e) {
+      pdDoc.close();
+      throw e;
+    }
+    return pdDoc;
+  }
+
+  private ExtractedMetadata doParse(
+      final PDDocument pdDoc,
+      int headerMax,
+      final ParseTrace trace,
+      long stageStart
+  ) throws IOException {
     final ExtractedMetadata em;
-    final PDDocument pdDoc = PDDocument.load(is);
+    ParseTrace.OpenSpan span;
 
     //
     // Run Science-parse
     //
     {
+      span = trace.start("extractText");
       PDFExtractor ext = new PDFExtractor();
       final PDFDoc doc = ext.extractResultFromPDDocument(pdDoc).document;
       final PDFDoc docWithoutSuperscripts = doc.withoutSuperscripts();
+      span.end();
+      stageStart = stageFinished(ParseListener.Stage.EXTRACT_TEXT, stageStart);
 
+      span = trace.start("getSequence");
       List<PaperToken> seq = PDFToCRFInput.getSequence(docWithoutSuperscripts);
       seq = seq.subList(0, Math.min(seq.size(), headerMax));
       seq = PDFToCRFInput.padSequence(seq);
+      span.end();
 
       { // get title and authors from the CRF
+        span = trace.start("bestGuess");
         List<String> outSeq = model.bestGuess(seq);
+        span.end();
         //the output tag sequence will not include the start/stop states!
         outSeq = PDFToCRFInput.padTagSequence(outSeq);
         em = new ExtractedMetadata(seq, outSeq);
         em.source = ExtractedMetadata.Source.CRF;
+        if(trace.isEnabled())
+          em.trace = trace;
       }
+      stageStart = stageFinished(ParseListener.Stage.HEADER_CRF, stageStart);
 
       // use PDF metadata if it's there
       if (doc.meta != null) {
@@ -1060,15 +1226,24 @@ public class Parser {
       try {
         final List<String> lines = PDFDocToPartitionedText.getRaw(doc);
         final List<String> rawReferences = PDFDocToPartitionedText.getRawReferences(doc);
-        final Pair<List<BibRecord>, List<CitationRecord>> pair =
-            getReferences(lines, rawReferences, referenceExtractor);
-        em.references = new ArrayList<>(pair.getOne().size());
-        for(final BibRecord record : pair.getOne())
+
+        // same as getReferences(), but timed separately
+        final Pair<List<BibRecord>, ExtractReferences.BibStractor> fnd =
+            referenceExtractor.findReferences(rawReferences, trace);
+        final List<BibRecord> brs =
+            fnd.getOne().stream().map(BibRecord::withNormalizedAuthors).collect(Collectors.toList());
+        em.references = new ArrayList<>(brs.size());
+        for(final BibRecord record : brs)
           em.references.add(record.withoutSuperscripts());
+        stageStart = stageFinished(ParseListener.Stage.REFERENCES, stageStart);
+
+        span = trace.start("findCitations");
+        final List<CitationRecord> citations =
+            ExtractReferences.findCitations(lines, brs, fnd.getTwo());
 
         // add contexts to the mentions
         List<CitationRecord> crs = new ArrayList<>();
-        for(final CitationRecord cr : pair.getTwo()) {
+        for(final CitationRecord cr : citations) {
           final CitationRecord crWithContext =
               extractContext(cr.referenceID, cr.context, cr.startOffset, cr.endOffset);
           final int contextLength =
@@ -1108,7 +1283,11 @@ public class Parser {
         for(final CitationRecord cr : crs)
           if(predominantStyle == '\0' || getMentionStyle.apply(cr) == predominantStyle)
             em.referenceMentions.add(cr.withConvertedSuperscriptTags());
+        span.end();
+        stageStart = stageFinished(ParseListener.Stage.CITATIONS, stageStart);
       } catch (final RegexWithTimeout.RegexTimeout|Parser.ParsingTimeout e) {
+        timedOut(e);
+        stageStart = System.nanoTime();
         logger.warn("Timeout while extracting references. References may be incomplete or missing.");
         if (em.references == null)
           em.references = Collections.emptyList();
@@ -1118,6 +1297,7 @@ public class Parser {
       logger.debug(em.references.size() + " refs for " + em.title);
 
       try {
+        span = trace.start("getAbstract");
         final List<String> lines = PDFDocToPartitionedText.getRaw(docWithoutSuperscripts);
         // Fix-up of lines that should not be necessary, but is
         for(int i = 0; i < lines.size(); ++i) {
@@ -1130,7 +1310,11 @@ public class Parser {
         em.abstractText = em.abstractText.replaceAll("⍐[^⍗]⍗", "");
         if (em.abstractText.isEmpty())
           em.abstractText = null;
+        span.end();
+        stageStart = stageFinished(ParseListener.Stage.ABSTRACT, stageStart);
       } catch (final RegexWithTimeout.RegexTimeout|Parser.ParsingTimeout e) {
+        timedOut(e);
+        stageStart = System.nanoTime();
         logger.warn("Timeout while extracting abstract. Abstract will be missing.");
         em.abstractText = null;
       }
@@ -1140,6 +1324,7 @@ public class Parser {
     // Run figure extraction to get sections
     //
     try {
+      span = trace.start("figureExtractor");
       final FigureExtractor fe = new FigureExtractor(false, true, true, true, true);
 
       final FigureExtractor.Document doc =
@@ -1158,6 +1343,8 @@ public class Parser {
                 documentSection.getHeading().trim().toLowerCase().replaceAll("\\p{Punct}*$", ""))
           )
       ).collect(Collectors.toList());
+      span.end();
+      stageFinished(ParseListener.Stage.SECTIONS, stageStart);
     } catch (final Exception e) {
       logger.warn(
           "Exception {} while getting sections. Section data will be missing.",
@@ -1182,5 +1369,8 @@ public class Parser {
     public boolean checkAuthors; //only bootstraps papers if all authors are found
     public int documentCount = -1; // how many documents to train on. set to -1 to train on all.
     public int minExpectedFeatureCount = 1;
+    public String tokenStoreDirectory; // where to keep extracted token sequences. null to not keep them.
+    public String checkpointFile; // where to write the best model so far while training. null to not write it.
+    public long checkpointIntervalMs = 10 * 60 * 1000;
   }
 }
@@ -6,19 +6,24 @@ import com.gs.collections.impl.set.mutable.UnifiedSet;
 import lombok.extern.slf4j.Slf4j;
 import org.allenai.scienceparse.ParserGroundTruth.Paper;
 
+import org.allenai.scienceparse.pdfapi.PDFDoc;
+import org.allenai.scienceparse.pdfapi.PDFExtractor;
+
+import java.io.BufferedReader;
 import java.io.File;
-import java.io.FilenameFilter;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.Serializable;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CompletionService;
 import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorCompletionService;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 @Slf4j
 public class ParserLMFeatures implements Serializable {
@@ -28,25 +33,143 @@ public class ParserLMFeatures implements Serializable {
    */
   private static final long serialVersionUID = 1L;
 
-  final ObjectDoubleHashMap<String> titleBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> titleFirstBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> titleLastBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> titleBagOfCharTrigrams = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> authorBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> authorFirstBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> authorLastBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> authorBagOfCharTrigrams = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> backgroundBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> venueBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> venueFirstBow = new ObjectDoubleHashMap<String>();
-  final ObjectDoubleHashMap<String> venueLastBow = new ObjectDoubleHashMap<String>();
+  // Not final, so dropBagsOfWords() can let go of them. Models store them with FST.
+  ObjectDoubleHashMap<String> titleBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> titleFirstBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> titleLastBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> titleBagOfCharTrigrams = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> authorBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> authorFirstBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> authorLastBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> authorBagOfCharTrigrams = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> backgroundBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> venueBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> venueFirstBow = new ObjectDoubleHashMap<String>();
+  ObjectDoubleHashMap<String> venueLastBow = new ObjectDoubleHashMap<String>();
 
 
   public ParserLMFeatures() {
 
   }
 
-  //paperDirectory must contain pdf docs to use as background language model
+  /** The bags of words that the predicate extractors look at */
+  public enum Column {
+    TITLE, TITLE_FIRST, TITLE_LAST,
+    AUTHOR, AUTHOR_FIRST, AUTHOR_LAST,
+    BACKGROUND,
+    VENUE, VENUE_FIRST, VENUE_LAST
+  }
+
+  private ObjectDoubleHashMap<String> bow(final Column column) {
+    switch(column) {
+      case TITLE: return titleBow;
+      case TITLE_FIRST: return titleFirstBow;
+      case TITLE_LAST: return titleLastBow;
+      case AUTHOR: return authorBow;
+      case AUTHOR_FIRST: return authorFirstBow;
+      case AUTHOR_LAST: return authorLastBow;
+      case BACKGROUND: return backgroundBow;
+      case VENUE: return venueBow;
+      case VENUE_FIRST: return venueFirstBow;
+      case VENUE_LAST: return venueLastBow;
+      default: throw new IllegalArgumentException(column.toString());
+    }
+  }
+
+  /**
+   * All bags of words as one table, with one row per token, and one column per bag. The tokens
+   * are interned in a Vocabulary. A token is looked up once, and then all its counts can be read
+   * from the columns. The columns are floats, except for the background counts, which can be too
+   * big for a float to hold exactly.
+   */
+  public static class Frequencies {
+    private final Vocabulary rows;
+    private final float[][] columns;
+    private final double[] background;
+
+    private Frequencies(final ParserLMFeatures plf) {
+      final Column[] allColumns = Column.values();
+      final UnifiedSet<String> tokens = new UnifiedSet<>();
+      for(final Column column : allColumns)
+        plf.bow(column).forEachKey(tokens::add);
+      rows = new Vocabulary(tokens);
+
+      columns = new float[allColumns.length][];
+      for(final Column column : allColumns) {
+        if(column == Column.BACKGROUND)
+          continue;
+        final float[] counts = new float[rows.size()];
+        plf.bow(column).forEachKeyValue((token, count) -> counts[rows.indexOf(token)] = (float) count);
+        columns[column.ordinal()] = counts;
+      }
+      background = new double[rows.size()];
+      plf.bow(Column.BACKGROUND).forEachKeyValue((token, count) -> background[rows.indexOf(token)] = count);
+    }
+
+    /** Returns the row of the token, or -1 if no bag contains it */
+    public int row(final String token) {
+      return rows.indexOf(token);
+    }
+
+    public double count(final int row, final Column column) {
+      if(row < 0)
+        return 0.0;
+      return column == Column.BACKGROUND ? background[row] : columns[column.ordinal()][row];
+    }
+
+    public double smoothFreq(final int row, final Column column) {
+      return PDFPredicateExtractor.smoothFreq(count(row, column));
+    }
+  }
+
+  private transient volatile Frequencies frequencies;
+  private transient boolean bagsOfWordsDropped = false;
+
+  /**
+   * The bags of words as a Frequencies table. Only call this once the bags are complete. The table
+   * holds the counts a second time, on top of the bags, until dropBagsOfWords() is called.
+   */
+  public Frequencies frequencies() {
+    Frequencies result = frequencies;
+    if(result == null) {
+      synchronized(this) {
+        result = frequencies;
+        if(result == null) {
+          result = new Frequencies(this);
+          frequencies = result;
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Builds the Frequencies table, and then lets go of the bags of words, so that the counts are
+   * in memory only once. The bags are only needed to save a model, so call this after loading
+   * one. The features can't be saved afterwards.
+   */
+  public synchronized void dropBagsOfWords() {
+    frequencies();
+    titleBow = new ObjectDoubleHashMap<>();
+    titleFirstBow = new ObjectDoubleHashMap<>();
+    titleLastBow = new ObjectDoubleHashMap<>();
+    titleBagOfCharTrigrams = new ObjectDoubleHashMap<>();
+    authorBow = new ObjectDoubleHashMap<>();
+    authorFirstBow = new ObjectDoubleHashMap<>();
+    authorLastBow = new ObjectDoubleHashMap<>();
+    authorBagOfCharTrigrams = new ObjectDoubleHashMap<>();
+    backgroundBow = new ObjectDoubleHashMap<>();
+    venueBow = new ObjectDoubleHashMap<>();
+    venueFirstBow = new ObjectDoubleHashMap<>();
+    venueLastBow = new ObjectDoubleHashMap<>();
+    bagsOfWordsDropped = true;
+  }
+
+  public synchronized boolean bagsOfWordsDropped() {
+    return bagsOfWordsDropped;
+  }
+
+  //paperDirectory must contain pdf docs, or tokens from writeBackgroundText(), to use as background language model
   public ParserLMFeatures(
           List<Paper> ps,
           UnifiedSet<String> idsToExclude,
@@ -67,73 +190,175 @@ public class ParserLMFeatures implements Serializable {
             "Getting token statistics from approximately {} background papers in {}",
             approxNumBackgroundDocs,
             paperDirectory);
-    final ExecutorService executor =
-      Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors() * 2);
-    final CompletionService<String[]> completionService = new ExecutorCompletionService<>(executor);
+    final List<File> papers = sample(backgroundPapers(paperDirectory), approxNumBackgroundDocs);
+
+    // Every worker counts into its own map. The maps are merged pairwise at the end.
+    final ForkJoinPool pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors() * 2);
+    final BackgroundCounts counts;
     try {
-      final File[] pdfs = paperDirectory.listFiles(new FilenameFilter() {
-        @Override
-        public boolean accept(File f, String s) {
-          return s.endsWith(".pdf");
-        }
-      });
+      counts = pool.submit(() -> papers.parallelStream().collect(
+          BackgroundCounts::new,
+          BackgroundCounts::addPaper,
+          BackgroundCounts::merge)).get();
+    } catch(final InterruptedException|ExecutionException e) {
+      throw new RuntimeException(e);
+    } finally {
+      pool.shutdown();
+    }
+    backgroundBow.putAll(counts.bow);
 
-      // put in the paper reading and tokenization tasks
-      final double step = ((double) approxNumBackgroundDocs) / ((double) pdfs.length);
-      double value = 0;
-      int submittedPapers = 0;
-      for(File pdf: pdfs) {
-        value += step;
-        if(value >= 1.0) {
-          value -= 1.0;
-
-          completionService.submit(() -> {
-            final String paperString = Parser.paperToString(pdf);
-            if(paperString != null) {
-              return tokenize(paperString);
-            } else {
-              return null;
-            }
-          });
+    log.info("Gazetteer loaded with {} tokens", counts.tokens);
+    log.info(
+            String.format(
+                    "Tried %d papers, succeeded on %d (%.2f%%)",
+                    papers.size(),
+                    counts.successfulPapers,
+                    100.0 * counts.successfulPapers / (double)papers.size()));
+  }
 
-          submittedPapers += 1;
-        }
+  //
+  // Background papers
+  //
+
+  /** Extension of files with the tokens of a paper, one token per line */
+  private static final String TOKENS = ".tokens";
+
+  /**
+   * The background papers in a directory. Papers can be PDFs, or tokens that were already
+   * extracted from PDFs with writeBackgroundText(). If there are tokens for a PDF, we use those.
+   */
+  private static List<File> backgroundPapers(final File paperDirectory) {
+    final File[] files = paperDirectory.listFiles((dir, name) -> name.endsWith(".pdf") || name.endsWith(TOKENS));
+    final List<File> result = new ArrayList<>();
+    if(files == null)
+      return result;
+    Arrays.sort(files);
+    for(final File f : files) {
+      if(f.getName().endsWith(TOKENS) || !tokensFileFor(f).exists())
+        result.add(f);
+    }
+    return result;
+  }
+
+  private static File tokensFileFor(final File pdf) {
+    final String name = pdf.getName();
+    return new File(pdf.getParentFile(), name.substring(0, name.length() - ".pdf".length()) + TOKENS);
+  }
+
+  /** Picks about approxCount papers, evenly spread over the list */
+  private static List<File> sample(final List<File> papers, final int approxCount) {
+    final double step = ((double) approxCount) / ((double) papers.size());
+    double value = 0;
+    final List<File> result = new ArrayList<>();
+    for(final File paper : papers) {
+      value += step;
+      if(value >= 1.0) {
+        value -= 1.0;
+        result.add(paper);
       }
+    }
+    return result;
+  }
 
-      // process the tokenized papers
-      int ct = 0;
-      int successfulPapers = 0;
-      int failedPapers = 0;
-      while(submittedPapers > successfulPapers + failedPapers) {
-        final String[] tokens;
-        try {
-          tokens = completionService.take().get();
-        } catch(final InterruptedException|ExecutionException e) {
-          throw new RuntimeException(e);
-        }
+  /**
+   * Calls the consumer with every token of the paper, in order, without building the whole text
+   * of the paper in memory. Tokens are the words that PDFExtractor finds, split at spaces.
+   */
+  private static void forEachToken(final File paper, final Consumer<String> consumer) throws IOException {
+    if(paper.getName().endsWith(TOKENS)) {
+      try(final BufferedReader reader = Files.newBufferedReader(paper.toPath(), StandardCharsets.UTF_8)) {
+        String line;
+        while((line = reader.readLine()) != null)
+          forEachPart(line, consumer);
+      }
+    } else {
+      final PDFDoc doc;
+      try(final FileInputStream fis = new FileInputStream(paper)) {
+        doc = new PDFExtractor().extractFromInputStream(fis);
+      }
+      for(final PaperToken pt : PDFToCRFInput.getSequence(doc))
+        forEachPart(pt.getLine() == -1 ? "<S>" : pt.getPdfToken().token, consumer);
+    }
+  }
+
+  private static void forEachPart(final String s, final Consumer<String> consumer) {
+    int start = 0;
+    while(start < s.length()) {
+      int end = s.indexOf(' ', start);
+      if(end < 0)
+        end = s.length();
+      if(end > start)
+        consumer.accept(s.substring(start, end));
+      start = end + 1;
+    }
+  }
 
-        if(tokens != null) {
-        ct += fillBow(backgroundBow, tokens, null, null, null, false);
-          successfulPapers += 1;
-        } else {
-          failedPapers += 1;
+  /**
+   * Extracts the tokens of every PDF in the directory that doesn't have a tokens file yet, and
+   * writes them next to the PDF, so that the next time we gather background statistics, we don't
+   * have to parse the PDFs again.
+   */
+  public static void writeBackgroundText(final File paperDirectory) {
+    final File[] pdfs = paperDirectory.listFiles((dir, name) -> name.endsWith(".pdf"));
+    if(pdfs == null)
+      return;
+    Arrays.stream(pdfs).parallel().filter(pdf -> !tokensFileFor(pdf).exists()).forEach(pdf -> {
+      final File tokensFile = tokensFileFor(pdf);
+      try {
+        final File tempFile = File.createTempFile(tokensFile.getName(), ".tmp", paperDirectory);
+        try(final Writer writer = Files.newBufferedWriter(tempFile.toPath(), StandardCharsets.UTF_8)) {
+          forEachToken(pdf, token -> {
+            try {
+              writer.write(token);
+              writer.write('\n');
+            } catch(final IOException e) {
+              throw new UncheckedIOException(e);
+            }
+          });
+        } catch(final Exception e) {
+          tempFile.delete();
+          throw e;
         }
+        if(!tempFile.renameTo(tokensFile))
+          tempFile.delete();
+      } catch(final Exception e) {
+        log.warn("Could not extract text from {}", pdf, e);
       }
-      log.info("Gazetteer loaded with {} tokens", ct);
-      log.info(
-              String.format(
-                      "Tried %d papers, succeeded on %d (%.2f%%)",
-                      submittedPapers,
-                      successfulPapers,
-                      100.0 * successfulPapers / (double)submittedPapers));
+    });
+  }
 
-    } finally {
-      executor.shutdown();
+  /** Token counts from one or more background papers */
+  private static class BackgroundCounts {
+    ObjectDoubleHashMap<String> bow = new ObjectDoubleHashMap<>();
+    int tokens = 0;
+    int successfulPapers = 0;
+
+    void addPaper(final File paper) {
+      // Count into a separate map first, so a paper that fails halfway doesn't count at all.
+      final ObjectDoubleHashMap<String> paperBow = new ObjectDoubleHashMap<>();
       try {
-        executor.awaitTermination(10, TimeUnit.SECONDS);
-      } catch(final InterruptedException e) {
-        // do nothing
+        forEachToken(paper, token -> paperBow.addToValue(token, 1.0));
+      } catch(final Exception e) {
+        log.warn("Could not read background paper {}", paper, e);
+        return;
+      }
+      paperBow.forEachKeyValue((token, count) -> {
+        bow.addToValue(token, count);
+        tokens += (int) count;
+      });
+      successfulPapers += 1;
+    }
+
+    void merge(final BackgroundCounts other) {
+      // Merge the smaller map into the bigger one.
+      ObjectDoubleHashMap<String> from = other.bow;
+      if(from.size() > bow.size()) {
+        from = bow;
+        bow = other.bow;
       }
+      from.forEachKeyValue(bow::addToValue);
+      tokens += other.tokens;
+      successfulPapers += other.successfulPapers;
     }
   }
 
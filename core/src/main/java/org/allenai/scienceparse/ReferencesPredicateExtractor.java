@@ -218,27 +218,30 @@ public class ReferencesPredicateExtractor implements CRFPredicateExtractor<Strin
       m.put("%adjLenSq", adjLenSq); //adjusted word length squared (?)
 
       if (lmFeats != null) { //how well does token match title/author gazeetters
-        m.put("%tfreq", PDFPredicateExtractor.smoothFreq(tok, this.lmFeats.titleBow));
-        m.put("%tffreq", PDFPredicateExtractor.smoothFreq(tok, this.lmFeats.titleFirstBow));
-        m.put("%tlfreq", PDFPredicateExtractor.smoothFreq(tok, this.lmFeats.titleLastBow));
+        final ParserLMFeatures.Frequencies freqs = this.lmFeats.frequencies();
+        final int row = freqs.row(tok);
+        final int authorRow = freqs.row(Parser.fixupAuthors(tok));
+        m.put("%tfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.TITLE));
+        m.put("%tffreq", freqs.smoothFreq(row, ParserLMFeatures.Column.TITLE_FIRST));
+        m.put("%tlfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.TITLE_LAST));
 //        ObjectDoubleHashMap<String> hmTgrams = new ObjectDoubleHashMap<>();
 //        ParserLMFeatures.addTrigrams(hmTgrams, tok);
 //        for(String s: hmTgrams.keySet())
 //          m.addToValue("%titleTG", PDFPredicateExtractor.smoothFreq(s, this.lmFeats.titleBagOfCharTrigrams));
 //        m.put("%titleTG", m.get("%titleTG")/(tok.length()+2)); //use average
-        m.put("%afreq", PDFPredicateExtractor.smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.authorBow));
-        m.put("%affreq", PDFPredicateExtractor.smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.authorFirstBow));
-        m.put("%alfreq", PDFPredicateExtractor.smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.authorLastBow));
+        m.put("%afreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.AUTHOR));
+        m.put("%affreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.AUTHOR_FIRST));
+        m.put("%alfreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.AUTHOR_LAST));
 //        hmTgrams = new ObjectDoubleHashMap<>();
 //        ParserLMFeatures.addTrigrams(hmTgrams, Parser.fixupAuthors(tok));
 //        for(String s: hmTgrams.keySet())
 //          m.addToValue("%authorTG", PDFPredicateExtractor.smoothFreq(s, this.lmFeats.authorBagOfCharTrigrams));
 //        m.put("%authorTG", m.get("%authorTG")/(Parser.fixupAuthors(tok).length()+2)); //use average
-        m.put("%vfreq", PDFPredicateExtractor.smoothFreq(tok, this.lmFeats.venueBow));
-        m.put("%vffreq", PDFPredicateExtractor.smoothFreq(tok, this.lmFeats.venueFirstBow));
-        m.put("%vlfreq", PDFPredicateExtractor.smoothFreq(tok, this.lmFeats.venueLastBow));
-        m.put("%bfreq", PDFPredicateExtractor.smoothFreq(tok, this.lmFeats.backgroundBow));
-        m.put("%bafreq", PDFPredicateExtractor.smoothFreq(Parser.fixupAuthors(tok), this.lmFeats.backgroundBow));
+        m.put("%vfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.VENUE));
+        m.put("%vffreq", freqs.smoothFreq(row, ParserLMFeatures.Column.VENUE_FIRST));
+        m.put("%vlfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.VENUE_LAST));
+        m.put("%bfreq", freqs.smoothFreq(row, ParserLMFeatures.Column.BACKGROUND));
+        m.put("%bafreq", freqs.smoothFreq(authorRow, ParserLMFeatures.Column.BACKGROUND));
         // add word embeddings
         try {
           final Iterator<Double> vector = word2vecSearcher.getRawVector(tok).iterator();
@@ -7,15 +7,28 @@ package org.allenai.scienceparse;
 
 public class StringLongHash {
   
+  public static final long INITIAL = 1125899906842597L; // prime
+
   //adapted from String.hashCode()
   public static long hash(String string) {
-   long h = 1125899906842597L; // prime
-   int len = string.length();
-  
-   for (int i = 0; i < len; i++) {
-     h = 31*h + string.charAt(i);
-   }
-   return h;
+    return extend(INITIAL, string);
   }
 
+  /** Returns the hash of a string that starts with whatever hashed to h, and goes on with s */
+  public static long extend(long h, String s) {
+    int len = s.length();
+    for (int i = 0; i < len; i++) {
+      h = 31*h + s.charAt(i);
+    }
+    return h;
+  }
+
+  /** 31 to the power of n. extend(h, s) is h * power(s.length()) + extend(0, s). */
+  public static long power(int n) {
+    long p = 1;
+    for (int i = 0; i < n; i++) {
+      p *= 31;
+    }
+    return p;
+  }
 }
@@ -0,0 +1,291 @@
+package org.allenai.scienceparse;
+
+import com.gs.collections.api.list.primitive.FloatList;
+import com.gs.collections.api.list.primitive.IntList;
+import com.gs.collections.impl.list.mutable.primitive.FloatArrayList;
+import com.gs.collections.impl.list.mutable.primitive.IntArrayList;
+import com.gs.collections.impl.map.mutable.UnifiedMap;
+import lombok.extern.slf4j.Slf4j;
+import org.allenai.scienceparse.pdfapi.PDFFontMetrics;
+import org.allenai.scienceparse.pdfapi.PDFToken;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Keeps the token sequences that PDFExtractor and PDFToCRFInput.getSequence() make from training
+ * PDFs, keyed by the SHA of the PDF, so training runs don't have to extract the same PDFs over
+ * and over.
+ *
+ * The store is a directory of segment files. Each run that adds sequences writes one or more new
+ * segments under a temporary name, and moves them into place when it's done. Later runs
+ * memory-map all segments. Sequences are cut off after headerMax tokens, so every headerMax gets
+ * its own subdirectory.
+ */
+@Slf4j
+public class TokenSequenceStore implements Closeable {
+  /** Change this whenever PDFExtractor or getSequence() make different tokens than before. */
+  public static final int EXTRACTOR_VERSION = 1;
+  private static final int FORMAT_VERSION = 1;
+  private static final long MAGIC = 0x5350544f4b454e53L; // "SPTOKENS"
+  private static final int SEGMENT_HEADER_BYTES = 12; // magic, format version
+  private static final long MAX_SEGMENT_BYTES = 1L << 30;
+  /** Segments are finished after this many sequences, so an interrupted run loses little work. */
+  private static final int MAX_SEGMENT_RECORDS = 1000;
+
+  private final Path directory;
+  private final int headerMax;
+  private final int maxSegmentRecords;
+  private final Map<String, ByteBuffer> records;
+
+  private DataOutputStream segmentOut = null;
+  private Path segmentTempFile = null;
+  private long segmentBytes = 0;
+  private int segmentRecords = 0;
+
+  private TokenSequenceStore(
+      final Path directory,
+      final int headerMax,
+      final int maxSegmentRecords,
+      final Map<String, ByteBuffer> records
+  ) {
+    this.directory = directory;
+    this.headerMax = headerMax;
+    this.maxSegmentRecords = maxSegmentRecords;
+    this.records = records;
+  }
+
+  public static TokenSequenceStore open(final Path baseDirectory, final int headerMax) throws IOException {
+    return open(baseDirectory, headerMax, MAX_SEGMENT_RECORDS);
+  }
+
+  static TokenSequenceStore open(
+      final Path baseDirectory,
+      final int headerMax,
+      final int maxSegmentRecords
+  ) throws IOException {
+    final Path directory =
+        baseDirectory.resolve(String.format("v%d-%d-headerMax%d", EXTRACTOR_VERSION, FORMAT_VERSION, headerMax));
+    Files.createDirectories(directory);
+
+    final Map<String, ByteBuffer> records = new UnifiedMap<>();
+    try(final DirectoryStream<Path> segments = Files.newDirectoryStream(directory, "*.segment")) {
+      for(final Path segment : segments) {
+        try {
+          readSegment(segment, records);
+        } catch(final IOException e) {
+          log.warn("Skipping damaged token sequence segment {}", segment, e);
+        }
+      }
+    }
+    log.info("Found {} token sequences in {}", records.size(), directory);
+    return new TokenSequenceStore(directory, headerMax, maxSegmentRecords, records);
+  }
+
+  private static void readSegment(final Path segment, final Map<String, ByteBuffer> records) throws IOException {
+    try(final FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      if(size < SEGMENT_HEADER_BYTES || size > Integer.MAX_VALUE)
+        throw new IOException("Segment has invalid size " + size);
+      // The mapping stays valid after the channel is closed.
+      final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+      if(buffer.getLong() != MAGIC)
+        throw new IOException(segment + " is not a token sequence segment");
+      final int version = buffer.getInt();
+      if(version != FORMAT_VERSION)
+        throw new IOException("Segment " + segment + " has version " + version);
+
+      while(buffer.hasRemaining()) {
+        final int length = buffer.getInt();
+        if(length < 2 || length > buffer.remaining())
+          throw new IOException("Segment " + segment + " is damaged");
+        final ByteBuffer record = buffer.slice();
+        record.limit(length);
+        buffer.position(buffer.position() + length);
+
+        // Every record starts with the SHA, written with writeUTF().
+        final byte[] sha = new byte[record.getShort(0) & 0xffff];
+        final ByteBuffer shaBuffer = record.duplicate();
+        shaBuffer.position(2);
+        shaBuffer.get(sha);
+        records.put(new String(sha, StandardCharsets.UTF_8), record);
+      }
+    }
+  }
+
+  public int getHeaderMax() {
+    return headerMax;
+  }
+
+  public int size() {
+    return records.size();
+  }
+
+  /**
+   * Returns the sequence for the PDF with the given SHA, or null if it's not in the store. An
+   * empty sequence means we couldn't extract anything from the PDF.
+   */
+  public List<PaperToken> get(final String sha) throws IOException {
+    final ByteBuffer record = records.get(sha);
+    if(record == null)
+      return null;
+
+    final byte[] bytes = new byte[record.limit()];
+    record.duplicate().get(bytes);
+    try(final DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+      in.readUTF(); // sha
+
+      final PDFFontMetrics[] fonts = new PDFFontMetrics[in.readInt()];
+      for(int i = 0; i < fonts.length; i++) {
+        final int id = in.readInt();
+        final String name = in.readBoolean() ? in.readUTF() : null;
+        final float ptSize = in.readFloat();
+        final float spaceWidth = in.readFloat();
+        fonts[i] = new PDFFontMetrics(id, name, ptSize, spaceWidth);
+      }
+
+      final int tokenCount = in.readInt();
+      final List<PaperToken> result = new ArrayList<>(tokenCount);
+      for(int i = 0; i < tokenCount; i++) {
+        final int page = in.readInt();
+        final int line = in.readInt();
+        final String token = in.readUTF();
+        final PDFFontMetrics font = fonts[in.readInt()];
+
+        final float[] bounds = new float[in.readInt()];
+        for(int j = 0; j < bounds.length; j++)
+          bounds[j] = in.readFloat();
+
+        final IntList superscripts;
+        final int superscriptCount = in.readInt();
+        if(superscriptCount == 0) {
+          superscripts = PDFToken.NO_SUPERSCRIPTS;
+        } else {
+          final IntArrayList s = new IntArrayList(superscriptCount);
+          for(int j = 0; j < superscriptCount; j++)
+            s.add(in.readInt());
+          superscripts = s;
+        }
+
+        final PDFToken pdfToken = PDFToken.builder().
+            token(token).
+            fontMetrics(font).
+            bounds(FloatArrayList.newListWith(bounds)).
+            superscripts(superscripts).
+            build();
+        result.add(new PaperToken(pdfToken, line, page));
+      }
+      return result;
+    }
+  }
+
+  /**
+   * Adds a sequence to the store. Pass an empty sequence for PDFs we couldn't extract anything
+   * from. Added sequences show up the next time the store is opened.
+   */
+  public void put(final String sha, final List<PaperToken> sequence) throws IOException {
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try(final DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeUTF(sha);
+
+      // Tokens share their font metrics, so we write each of them only once.
+      final Map<PDFFontMetrics, Integer> fontIndexes = new IdentityHashMap<>();
+      final List<PDFFontMetrics> fonts = new ArrayList<>();
+      for(final PaperToken token : sequence) {
+        final PDFFontMetrics font = token.getPdfToken().fontMetrics;
+        if(!fontIndexes.containsKey(font)) {
+          fontIndexes.put(font, fonts.size());
+          fonts.add(font);
+        }
+      }
+      out.writeInt(fonts.size());
+      for(final PDFFontMetrics font : fonts) {
+        out.writeInt(font.id);
+        out.writeBoolean(font.name != null);
+        if(font.name != null)
+          out.writeUTF(font.name);
+        out.writeFloat(font.ptSize);
+        out.writeFloat(font.spaceWidth);
+      }
+
+      out.writeInt(sequence.size());
+      for(final PaperToken token : sequence) {
+        final PDFToken pdfToken = token.getPdfToken();
+        out.writeInt(token.getPage());
+        out.writeInt(token.getLine());
+        out.writeUTF(pdfToken.token);
+        out.writeInt(fontIndexes.get(pdfToken.fontMetrics));
+
+        final FloatList bounds = pdfToken.bounds;
+        out.writeInt(bounds.size());
+        for(int i = 0; i < bounds.size(); i++)
+          out.writeFloat(bounds.get(i));
+
+        final IntList superscripts =
+            pdfToken.superscripts == null ? PDFToken.NO_SUPERSCRIPTS : pdfToken.superscripts;
+        out.writeInt(superscripts.size());
+        for(int i = 0; i < superscripts.size(); i++)
+          out.writeInt(superscripts.get(i));
+      }
+    }
+
+    synchronized(this) {
+      if(segmentOut != null &&
+          (segmentBytes + 4 + bytes.size() > MAX_SEGMENT_BYTES || segmentRecords >= maxSegmentRecords))
+        finishSegment();
+      if(segmentOut == null)
+        startSegment();
+      segmentOut.writeInt(bytes.size());
+      bytes.writeTo(segmentOut);
+      segmentBytes += 4 + bytes.size();
+      segmentRecords += 1;
+    }
+  }
+
+  private void startSegment() throws IOException {
+    segmentTempFile = Files.createTempFile(directory, "segment", ".tmp");
+    segmentOut = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(segmentTempFile)));
+    segmentOut.writeLong(MAGIC);
+    segmentOut.writeInt(FORMAT_VERSION);
+    segmentBytes = SEGMENT_HEADER_BYTES;
+    segmentRecords = 0;
+  }
+
+  private void finishSegment() throws IOException {
+    try {
+      segmentOut.close();
+      final Path segment = directory.resolve(UUID.randomUUID() + ".segment");
+      Files.move(segmentTempFile, segment, StandardCopyOption.ATOMIC_MOVE);
+      log.info("Wrote token sequence segment {}", segment);
+    } finally {
+      Files.deleteIfExists(segmentTempFile);
+      segmentOut = null;
+      segmentTempFile = null;
+    }
+  }
+
+  /** Moves the sequences that were added into place, so the next run can see them. */
+  @Override
+  public synchronized void close() throws IOException {
+    if(segmentOut != null)
+      finishSegment();
+  }
+}
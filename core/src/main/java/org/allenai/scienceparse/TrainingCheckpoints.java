@@ -0,0 +1,98 @@
+package org.allenai.scienceparse;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Timer;
+import java.util.TimerTask;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * Writes the best model so far to a checkpoint file at regular intervals while a CRF trains. If
+ * the run dies, the checkpoint is a fallback model that can be used as it is. Training can't
+ * resume from it. The file is written under a temporary name and moved into place, so it's never
+ * half-written.
+ *
+ * The trainer's thread reports models through the evaluation function from tracking(). The timer
+ * thread writes them. Both go through this object's lock.
+ */
+@Slf4j
+public class TrainingCheckpoints<M> implements Closeable {
+  public interface ModelWriter<M> {
+    void write(DataOutputStream dos, M model) throws IOException;
+  }
+
+  private final Path file;
+  private final ModelWriter<M> writer;
+  private final Timer timer;
+  private M bestModel = null;
+  private double bestScore = Double.NEGATIVE_INFINITY;
+  private M lastWritten = null;
+
+  public TrainingCheckpoints(final Path file, final long intervalMs, final ModelWriter<M> writer) {
+    if(intervalMs <= 0)
+      throw new IllegalArgumentException("Checkpoint interval must be positive, not " + intervalMs);
+    this.file = file;
+    this.writer = writer;
+    this.timer = new Timer("Training checkpoint timer", true);
+    timer.schedule(new TimerTask() {
+      @Override
+      public void run() {
+        checkpoint();
+      }
+    }, intervalMs, intervalMs);
+  }
+
+  /** Returns an evaluation function that also remembers the best scoring model it has seen */
+  public ToDoubleFunction<M> tracking(final ToDoubleFunction<M> evalFn) {
+    return model -> {
+      final double score = evalFn.applyAsDouble(model);
+      offer(model, score);
+      return score;
+    };
+  }
+
+  /** Makes the model the next one to write, if it scores better than the best one so far */
+  public synchronized void offer(final M model, final double score) {
+    if(bestModel == null || score > bestScore) {
+      bestModel = model;
+      bestScore = score;
+    }
+  }
+
+  /** Writes the best model, unless it's the one we wrote last time */
+  public synchronized void checkpoint() {
+    final M model = bestModel;
+    if(model == null || model == lastWritten)
+      return;
+
+    try {
+      final Path tempFile =
+          Files.createTempFile(file.toAbsolutePath().getParent(), file.getFileName().toString(), ".tmp");
+      try {
+        try(final DataOutputStream dos =
+              new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+          writer.write(dos, model);
+        }
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+      } finally {
+        Files.deleteIfExists(tempFile);
+      }
+      lastWritten = model;
+      log.info("Wrote checkpoint to {}", file);
+    } catch(final IOException e) {
+      log.warn("Could not write checkpoint to {}", file, e);
+    }
+  }
+
+  @Override
+  public synchronized void close() {
+    timer.cancel();
+  }
+}
@@ -0,0 +1,132 @@
+package org.allenai.scienceparse;
+
+import java.util.Collection;
+
+/**
+ * A fixed set of strings, interned into one sorted UTF-8 blob, with an open addressing hash table
+ * over it. Every string has an index, which is its rank in sorted order. Takes a fraction of the
+ * memory of a map with String keys, and lookups don't allocate.
+ *
+ * Each UTF-16 char is encoded on its own, so a surrogate pair takes six bytes instead of four.
+ * Lookups encode the same way, so that only matters for the size of the blob.
+ */
+class Vocabulary {
+  private final byte[] blob;
+  /** String i is blob[offsets[i]] to blob[offsets[i + 1]] */
+  private final int[] offsets;
+  /** Index of the string in each slot, plus one. 0 means the slot is empty. */
+  private final int[] slots;
+
+  Vocabulary(final Collection<String> strings) {
+    final String[] sorted = strings.stream().distinct().sorted().toArray(String[]::new);
+
+    offsets = new int[sorted.length + 1];
+    for(int i = 0; i < sorted.length; i++)
+      offsets[i + 1] = Math.addExact(offsets[i], encodedLength(sorted[i]));
+    blob = new byte[offsets[sorted.length]];
+    for(int i = 0; i < sorted.length; i++)
+      encode(sorted[i], blob, offsets[i]);
+
+    // Power of two, at most half full
+    slots = new int[Math.max(2, Integer.highestOneBit(Math.max(1, sorted.length)) << 2)];
+    for(int i = 0; i < sorted.length; i++) {
+      int slot = slotFor(sorted[i]);
+      while(slots[slot] != 0)
+        slot = (slot + 1) & (slots.length - 1);
+      slots[slot] = i + 1;
+    }
+  }
+
+  public int size() {
+    return offsets.length - 1;
+  }
+
+  /** Returns the index of the string, or -1 if it's not in the vocabulary */
+  public int indexOf(final String s) {
+    int slot = slotFor(s);
+    while(slots[slot] != 0) {
+      final int index = slots[slot] - 1;
+      if(matches(index, s))
+        return index;
+      slot = (slot + 1) & (slots.length - 1);
+    }
+    return -1;
+  }
+
+  public String get(final int index) {
+    final int end = offsets[index + 1];
+    final StringBuilder sb = new StringBuilder(end - offsets[index]);
+    int pos = offsets[index];
+    while(pos < end) {
+      final int b = blob[pos] & 0xff;
+      if(b < 0x80) {
+        sb.append((char) b);
+        pos += 1;
+      } else if(b < 0xe0) {
+        sb.append((char) (((b & 0x1f) << 6) | (blob[pos + 1] & 0x3f)));
+        pos += 2;
+      } else {
+        sb.append((char) (((b & 0x0f) << 12) | ((blob[pos + 1] & 0x3f) << 6) | (blob[pos + 2] & 0x3f)));
+        pos += 3;
+      }
+    }
+    return sb.toString();
+  }
+
+  private int slotFor(final String s) {
+    final int h = s.hashCode();
+    return (h ^ (h >>> 16)) & (slots.length - 1);
+  }
+
+  private boolean matches(final int index, final String s) {
+    int pos = offsets[index];
+    final int end = offsets[index + 1];
+    for(int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if(c < 0x80) {
+        if(pos + 1 > end || blob[pos] != (byte) c)
+          return false;
+        pos += 1;
+      } else if(c < 0x800) {
+        if(pos + 2 > end ||
+            blob[pos] != (byte) (0xc0 | (c >> 6)) ||
+            blob[pos + 1] != (byte) (0x80 | (c & 0x3f)))
+          return false;
+        pos += 2;
+      } else {
+        if(pos + 3 > end ||
+            blob[pos] != (byte) (0xe0 | (c >> 12)) ||
+            blob[pos + 1] != (byte) (0x80 | ((c >> 6) & 0x3f)) ||
+            blob[pos + 2] != (byte) (0x80 | (c & 0x3f)))
+          return false;
+        pos += 3;
+      }
+    }
+    return pos == end;
+  }
+
+  private static int encodedLength(final String s) {
+    int length = 0;
+    for(int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      length += c < 0x80 ? 1 : c < 0x800 ? 2 : 3;
+    }
+    return length;
+  }
+
+  private static void encode(final String s, final byte[] out, int pos) {
+    for(int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if(c < 0x80) {
+        out[pos++] = (byte) c;
+      } else if(c < 0x800) {
+        out[pos++] = (byte) (0xc0 | (c >> 6));
+        out[pos++] = (byte) (0x80 | (c & 0x3f));
+      } else {
+        out[pos++] = (byte) (0xe0 | (c >> 12));
+        out[pos++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+        out[pos++] = (byte) (0x80 | (c & 0x3f));
+      }
+    }
+  }
+}
@@ -18,11 +18,28 @@ public class PDFDoc {
    */
   @Wither public final List<PDFPage> pages;
   public final PDFMetadata meta;
+  /**
+   * The distinct fonts used in this document, indexed by {@link PDFFontMetrics#id}
+   */
+  public final List<PDFFontMetrics> fonts;
 
+  /**
+   * Returns the document with all superscripts removed. Pages, lines, and tokens without
+   * superscripts are shared with this document rather than copied.
+   */
   public PDFDoc withoutSuperscripts() {
-    final List<PDFPage> newPages = new ArrayList<>(pages.size());
-    for(PDFPage page : pages)
-      newPages.add(page.withoutSuperscripts());
-    return this.withPages(newPages);
+    List<PDFPage> newPages = null;
+    for(int i = 0; i < pages.size(); ++i) {
+      final PDFPage page = pages.get(i);
+      final PDFPage newPage = page.withoutSuperscripts();
+      if(newPages == null) {
+        if(newPage == page)
+          continue;
+        newPages = new ArrayList<>(pages.size());
+        newPages.addAll(pages.subList(0, i));
+      }
+      newPages.add(newPage);
+    }
+    return newPages == null ? this : this.withPages(newPages);
   }
 }
@@ -1,7 +1,10 @@
 package org.allenai.scienceparse.pdfapi;
 
 import com.gs.collections.api.list.primitive.FloatList;
+import com.gs.collections.api.list.primitive.IntList;
+import com.gs.collections.api.list.primitive.MutableIntList;
 import com.gs.collections.impl.list.mutable.primitive.FloatArrayList;
+import com.gs.collections.impl.list.mutable.primitive.IntArrayList;
 import lombok.Builder;
 import lombok.Data;
 import lombok.SneakyThrows;
@@ -178,6 +181,7 @@ public class PDFExtractor {
 
       PDFDoc doc = PDFDoc.builder()
         .pages(stripper.pages)
+        .fonts(stripper.fonts.fonts())
         .meta(meta.build())
         .build();
 
@@ -242,26 +246,61 @@ public class PDFExtractor {
     public boolean useHeuristicTitle = false;
   }
 
+  /**
+   * Equivalent to ExtractReferences.mentions.matcher(s).matches(), but it doesn't run the regex
+   * for the common cases of no superscript, or a superscript that can't possibly be a mention.
+   */
+  private static boolean isSuperscriptMention(final CharSequence s) {
+    if (s.length() == 0)
+      return false;
+    final char first = s.charAt(0);
+    if (!((first >= '1' && first <= '9') || first == '[' || first == '('))
+      return false;
+    return ExtractReferences.mentions.matcher(s).matches();
+  }
+
+  private static boolean isAscii(final String s) {
+    for (int i = 0; i < s.length(); ++i) {
+      if (s.charAt(i) >= 0x80)
+        return false;
+    }
+    return true;
+  }
+
+  private static IntList superscriptSpans(final String tokenText) {
+    final MutableIntList spans = new IntArrayList(2);
+    int start = tokenText.indexOf('⍐');
+    while (start >= 0) {
+      final int end = tokenText.indexOf('⍗', start);
+      if (end < 0)
+        break;
+      spans.add(start);
+      spans.add(end + 1);
+      start = tokenText.indexOf('⍐', end + 1);
+    }
+    return spans;
+  }
+
   @Data(staticConstructor = "of")
   private final static class RawChunk {
     // The PDFBox class doesn't get exposed outside of this class
     public final List<TextPosition> textPositions;
     
-    public PDFToken toPDFToken() {
+    public PDFToken toPDFToken(PDFFontRegistry fonts) {
       val builder = PDFToken.builder();
       // HACK(aria42) assumes left-to-right text
       TextPosition firstTP = textPositions.get(0);
       PDFont pdFont = firstTP.getFont();
       val desc = pdFont.getFontDescriptor();
       String fontFamily = desc == null ? PDFFontMetrics.UNKNWON_FONT_FAMILY : desc.getFontName();
+      if (fontFamily == null)
+        fontFamily = PDFFontMetrics.UNKNWON_FONT_FAMILY;
       float ptSize = firstTP.getFontSizeInPt();
       //HACK(ddowney): it appears that sometimes (maybe when half-pt font sizes are used), pdfbox 2.0 will multiply
       //  all of the true font sizes by 10.  If we detect this is likely, we divide font size by ten:
       if(ptSize > 45.0f)
         ptSize /= 10.0f;
-      //HACK(ddowney): ensure unique sizes get unique names/objects:
-      fontFamily += "_" + ptSize + "_" + firstTP.getWidthOfSpace();
-      val fontMetrics = PDFFontMetrics.of(fontFamily, ptSize, firstTP.getWidthOfSpace());
+      val fontMetrics = fonts.intern(fontFamily, ptSize, firstTP.getWidthOfSpace());
       builder.fontMetrics(fontMetrics);
 
       float minX = Float.POSITIVE_INFINITY;
@@ -293,6 +332,7 @@ public class PDFExtractor {
       // Since we have to map superscripts into flat strings, we encode superscripts by enclosing
       // them in ⍐ and ⍗ characters.
       String tokenText;
+      boolean hasSuperscripts = false;
       {
         final double yThresh = (bounds.get(3) + bounds.get(1)) / 2.0;
         final double yGap = (bounds.get(3) - bounds.get(1));
@@ -303,11 +343,11 @@ public class PDFExtractor {
         for (TextPosition tp : textPositions) {
           if (tp.getY() > yThresh || (yThresh - tp.getY() > yGap / 6.0)) { // latter case suggests a height bug (?) so ignore
             // normal character
-            if(ExtractReferences.mentions.matcher(superscriptSb).matches()) {
-              assert superscriptSb.length() > 0;
+            if(isSuperscriptMention(superscriptSb)) {
               sb.append('⍐');
               sb.append(superscriptSb);
               sb.append('⍗');
+              hasSuperscripts = true;
             }
             superscriptSb.setLength(0);
             sb.append(tp.getUnicode());
@@ -317,18 +357,22 @@ public class PDFExtractor {
           }
         }
         // pick up leftover superscripts
-        if(ExtractReferences.mentions.matcher(superscriptSb).matches()) {
-          assert superscriptSb.length() > 0;
+        if(isSuperscriptMention(superscriptSb)) {
           sb.append('⍐');
           sb.append(superscriptSb);
           sb.append('⍗');
+          hasSuperscripts = true;
         }
 
         tokenText = sb.toString();
       }
 
       // separate ligands
-      tokenText = Normalizer.normalize(tokenText, Normalizer.Form.NFKC);
+      if (!isAscii(tokenText))
+        tokenText = Normalizer.normalize(tokenText, Normalizer.Form.NFKC);
+
+      // ⍐ and ⍗ are unchanged by NFKC, so we find the spans after normalizing.
+      builder.superscripts(hasSuperscripts ? superscriptSpans(tokenText) : PDFToken.NO_SUPERSCRIPTS);
       builder.token(tokenText);
       return builder.build();
     }
@@ -337,6 +381,7 @@ public class PDFExtractor {
   private class PDFCaptureTextStripper extends PDFTextStripper {
 
     private List<PDFPage> pages = new ArrayList<>();
+    private final PDFFontRegistry fonts = new PDFFontRegistry();
     private List<PDFLine> curLines;
     private List<PDFToken> curLineTokens;
     private PDFToken lastToken;
@@ -356,7 +401,7 @@ public class PDFExtractor {
         if(prevX > 0.0 && tp.getX() < prevX) { //catch out-of-phase columns
           List<TextPosition> tokenPositions = new ArrayList<>(curPositions);
           if (tokenPositions.size() > 0) {
-            tokens.add(RawChunk.of(tokenPositions).toPDFToken());
+            tokens.add(RawChunk.of(tokenPositions).toPDFToken(fonts));
           }
           curPositions.clear();
           curPositions.add(tp);
@@ -364,7 +409,7 @@ public class PDFExtractor {
         else if (tp.getUnicode().trim().isEmpty()) {
           List<TextPosition> tokenPositions = new ArrayList<>(curPositions);
           if (tokenPositions.size() > 0) {
-            tokens.add(RawChunk.of(tokenPositions).toPDFToken());
+            tokens.add(RawChunk.of(tokenPositions).toPDFToken(fonts));
           }
           curPositions.clear();
         } else {
@@ -373,7 +418,7 @@ public class PDFExtractor {
         prevX = tp.getX();
       }
       if (!curPositions.isEmpty()) {
-        tokens.add(RawChunk.of(new ArrayList<>(curPositions)).toPDFToken());
+        tokens.add(RawChunk.of(new ArrayList<>(curPositions)).toPDFToken(fonts));
       }
       for (PDFToken token : tokens) {
         updateFromToken(token);
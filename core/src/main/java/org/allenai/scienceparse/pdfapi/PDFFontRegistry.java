@@ -0,0 +1,76 @@
+package org.allenai.scienceparse.pdfapi;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Per-document table of the distinct fonts seen during extraction. A paper uses only a handful
+ * of fonts, so every token with the same (descriptor, size, space width) shares one
+ * {@link PDFFontMetrics} object, identified by a small int id.
+ *
+ * Not thread-safe. One registry is used by a single extraction.
+ */
+public class PDFFontRegistry {
+  private final List<PDFFontMetrics> fonts = new ArrayList<>();
+  private final HashMap<String, List<PDFFontMetrics>> fontsByFamily = new HashMap<>();
+
+  // Consecutive tokens almost always share a font, so we check the last hit before hashing.
+  private String lastFamily = null;
+  private PDFFontMetrics lastFont = null;
+
+  private static boolean sameMetrics(PDFFontMetrics font, float ptSize, float spaceWidth) {
+    return
+      Float.floatToIntBits(font.ptSize) == Float.floatToIntBits(ptSize) &&
+      Float.floatToIntBits(font.spaceWidth) == Float.floatToIntBits(spaceWidth);
+  }
+
+  /**
+   * Returns the font for the given family, size, and space width, creating it if this is the
+   * first time we see it in this document.
+   */
+  public PDFFontMetrics intern(String family, float ptSize, float spaceWidth) {
+    if (lastFont != null && family.equals(lastFamily) && sameMetrics(lastFont, ptSize, spaceWidth))
+      return lastFont;
+
+    List<PDFFontMetrics> candidates = fontsByFamily.get(family);
+    if (candidates == null) {
+      candidates = new ArrayList<>(2);
+      fontsByFamily.put(family, candidates);
+    }
+
+    PDFFontMetrics result = null;
+    for (PDFFontMetrics candidate : candidates) {
+      if (sameMetrics(candidate, ptSize, spaceWidth)) {
+        result = candidate;
+        break;
+      }
+    }
+
+    if (result == null) {
+      //HACK(ddowney): ensure unique sizes get unique names/objects:
+      final String name = family + "_" + ptSize + "_" + spaceWidth;
+      result = new PDFFontMetrics(fonts.size(), name, ptSize, spaceWidth);
+      fonts.add(result);
+      candidates.add(result);
+    }
+
+    lastFamily = family;
+    lastFont = result;
+    return result;
+  }
+
+  public PDFFontMetrics get(int id) {
+    return fonts.get(id);
+  }
+
+  public int size() {
+    return fonts.size();
+  }
+
+  /** All fonts of the document, indexed by their id */
+  public List<PDFFontMetrics> fonts() {
+    return Collections.unmodifiableList(fonts);
+  }
+}
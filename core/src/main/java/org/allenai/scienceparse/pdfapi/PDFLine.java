@@ -52,13 +52,24 @@ public class PDFLine {
     return tokens.stream().mapToDouble(t -> t.getFontMetrics().getPtSize()).average().orElse(0.0);
   }
 
+  /**
+   * Returns the line with all superscripts removed. Lines without superscripts are returned as
+   * they are, so this does not copy anything in the common case.
+   */
   public PDFLine withoutSuperscripts() {
-    final List<PDFToken> newTokens = new ArrayList<>(tokens.size());
-    for(PDFToken token : tokens) {
-      final String newTokenText = token.token.replaceAll("⍐[^⍗]*⍗", "");
-      if(!newTokenText.isEmpty())
-        newTokens.add(token.withToken(newTokenText));
+    List<PDFToken> newTokens = null;
+    for(int i = 0; i < tokens.size(); ++i) {
+      final PDFToken token = tokens.get(i);
+      final PDFToken newToken = token.withoutSuperscripts();
+      if(newTokens == null) {
+        if(newToken == token)
+          continue;
+        newTokens = new ArrayList<>(tokens.size());
+        newTokens.addAll(tokens.subList(0, i));
+      }
+      if(newToken != null)
+        newTokens.add(newToken);
     }
-    return this.withTokens(newTokens);
+    return newTokens == null ? this : this.withTokens(newTokens);
   }
 }
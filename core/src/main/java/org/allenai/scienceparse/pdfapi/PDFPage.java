@@ -15,13 +15,24 @@ public class PDFPage {
   public final int pageWidth;
   public final int pageHeight;
 
+  /**
+   * Returns the page with all superscripts removed. Shares all lines that have no superscripts,
+   * and returns this page if none of them do.
+   */
   public PDFPage withoutSuperscripts() {
-    final List<PDFLine> newLines = new ArrayList<>(lines.size());
-    for(PDFLine line : lines) {
+    List<PDFLine> newLines = null;
+    for(int i = 0; i < lines.size(); ++i) {
+      final PDFLine line = lines.get(i);
       final PDFLine newLine = line.withoutSuperscripts();
+      if(newLines == null) {
+        if(newLine == line)
+          continue;
+        newLines = new ArrayList<>(lines.size());
+        newLines.addAll(lines.subList(0, i));
+      }
       if(!newLine.tokens.isEmpty())
         newLines.add(newLine);
     }
-    return this.withLines(newLines);
+    return newLines == null ? this : this.withLines(newLines);
   }
 }
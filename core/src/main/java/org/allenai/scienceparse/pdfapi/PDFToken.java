@@ -1,17 +1,72 @@
 package org.allenai.scienceparse.pdfapi;
 
 import com.gs.collections.api.list.primitive.FloatList;
+import com.gs.collections.api.list.primitive.IntList;
+import com.gs.collections.impl.factory.primitive.IntLists;
 import lombok.Builder;
 import lombok.Value;
-import lombok.experimental.Wither;
 
 @Builder
 @Value
 public class PDFToken {
-  @Wither public final String token;
+  public static final IntList NO_SUPERSCRIPTS = IntLists.immutable.empty();
+
+  public final String token;
   public final PDFFontMetrics fontMetrics;
   /**
    * List of ints [x0, y0, x1, y1] where [0,0] is upper left
    */
   public final FloatList bounds;
+  /**
+   * Superscripts in the token text, as pairs of [start, end) offsets. Each span includes the
+   * enclosing ⍐ and ⍗ characters.
+   */
+  public final IntList superscripts;
+
+  /**
+   * Id of this token's font within its document. Cheaper to compare than the metrics themselves.
+   */
+  public int fontId() {
+    return fontMetrics.id;
+  }
+
+  /**
+   * Returns the token with different text. The superscript offsets would point into the old text,
+   * so the new token has no superscripts.
+   */
+  public PDFToken withToken(final String token) {
+    if (this.token == token)
+      return this;
+    return new PDFToken(token, fontMetrics, bounds, NO_SUPERSCRIPTS);
+  }
+
+  public boolean hasSuperscripts() {
+    return superscripts != null && !superscripts.isEmpty();
+  }
+
+  /**
+   * Returns the token with all superscripts removed. Returns this token if there are none, and
+   * null if nothing but superscripts is left.
+   */
+  public PDFToken withoutSuperscripts() {
+    if (!hasSuperscripts())
+      return this;
+
+    final StringBuilder sb = new StringBuilder(token.length());
+    int start = 0;
+    for (int i = 0; i < superscripts.size(); i += 2) {
+      sb.append(token, start, superscripts.get(i));
+      start = superscripts.get(i + 1);
+    }
+    sb.append(token, start, token.length());
+    if (sb.length() == 0)
+      return null;
+
+    return PDFToken.builder().
+      token(sb.toString()).
+      fontMetrics(fontMetrics).
+      bounds(bounds).
+      superscripts(NO_SUPERSCRIPTS).
+      build();
+  }
 }
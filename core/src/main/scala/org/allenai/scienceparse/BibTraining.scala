@@ -23,7 +23,10 @@ object BibTraining extends App with Datastores with Logging {
     backgroundDirectory: Option[File] = None,
     gazetteerFile: Option[File] = None,
     trainFraction: Double = 0.9,
-    minExpectedFeatureCount: Int = 1
+    minExpectedFeatureCount: Int = 1,
+    threads: Int = Runtime.getRuntime.availableProcessors() * 2,
+    checkpoint: Option[File] = None,
+    checkpointMinutes: Int = 10
   )
 
   val parser = new OptionParser[Config](this.getClass.getSimpleName) {
@@ -61,6 +64,20 @@ object BibTraining extends App with Datastores with Logging {
       c.copy(minExpectedFeatureCount = n)
     } text "The minimum number of times we should see a feature before accepting it."
 
+    opt[Int]("threads") action { (t, c) =>
+      c.copy(threads = t)
+    } text "The number of threads to compute gradients with"
+
+    opt[File]("checkpoint") action { (f, c) =>
+      c.copy(checkpoint = Some(f))
+    } text "A file to write the best model so far to while training. It's a fallback model if the run dies. Training can't resume from it."
+
+    opt[Int]("checkpointMinutes") action { (m, c) =>
+      c.copy(checkpointMinutes = m)
+    } validate { m =>
+      if (m > 0) success else failure("checkpointMinutes must be positive")
+    } text "How often to write the checkpoint, in minutes"
+
     help("help") text "Prints help text"
   }
 
@@ -71,7 +88,9 @@ object BibTraining extends App with Datastores with Logging {
     val opts = new ParseOpts
     opts.modelFile = config.output.toString
     opts.iterations = config.maxIterations
-    opts.threads = Runtime.getRuntime.availableProcessors() * 2
+    opts.threads = config.threads
+    opts.checkpointFile = config.checkpoint.map(_.toString).orNull
+    opts.checkpointIntervalMs = config.checkpointMinutes * 60L * 1000L
     opts.backgroundSamples = config.backgroundSampleDocs
 
     val backgroundDirectory =
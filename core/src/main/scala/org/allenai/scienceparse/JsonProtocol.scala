@@ -122,8 +122,18 @@ object JsonProtocol extends DefaultJsonProtocol {
     }
   }
 
+  implicit object ParseTraceJsonFormat extends RootJsonWriter[ParseTrace] {
+    override def write(trace: ParseTrace): JsValue = JsArray(trace.getSpans.asScala.map { span =>
+      JsObject(
+        "name" -> span.name.toJson,
+        "elapsedNanos" -> span.elapsedNanos.toJson,
+        "allocatedBytes" -> span.allocatedBytes.toJson
+      )
+    }.toVector)
+  }
+
   implicit object ExtractedMetadataJsonFormat extends RootJsonFormat[ExtractedMetadata] {
-    override def write(em: ExtractedMetadata): JsValue = JsObject(
+    override def write(em: ExtractedMetadata): JsValue = JsObject(Map(
       "source" -> Option(em.source).toJson,
       "title" -> Option(em.title).toJson,
       "authors" -> em.authors.toJson,
@@ -134,7 +144,7 @@ object JsonProtocol extends DefaultJsonProtocol {
       "year" -> em.year.toJson,
       "abstractText" -> Option(em.abstractText).toJson,
       "creator" -> Option(em.creator).toJson
-    )
+    ) ++ Option(em.trace).map(trace => "trace" -> trace.toJson))
 
     override def read(json: JsValue): ExtractedMetadata = json.asJsObject.getFields(
       "source",
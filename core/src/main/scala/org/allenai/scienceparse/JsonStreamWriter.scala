@@ -0,0 +1,237 @@
+package org.allenai.scienceparse
+
+import java.io.OutputStream
+import java.util.regex.Pattern
+import java.util.{ List => JavaList }
+
+import com.fasterxml.jackson.core.{ JsonEncoding, JsonFactory, JsonGenerator }
+
+import scala.collection.JavaConverters._
+
+/** Writes ExtractedMetadata and LabeledData straight to an output stream, without building a
+  * JSON tree or an intermediate string first. The output has the same shape as the formats in
+  * JsonProtocol, so it can be read back with them.
+  */
+object JsonStreamWriter {
+  private val factory = new JsonFactory().disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET)
+
+  /** Returns a generator writing UTF-8 to the given stream. Closing the generator flushes it, but
+    * leaves the stream open.
+    */
+  def generator(os: OutputStream, pretty: Boolean = false): JsonGenerator = {
+    val gen = factory.createGenerator(os, JsonEncoding.UTF8)
+    if (pretty)
+      gen.useDefaultPrettyPrinter()
+    gen
+  }
+
+  def write(em: ExtractedMetadata, os: OutputStream, pretty: Boolean): Unit = {
+    val gen = generator(os, pretty)
+    try {
+      writeExtractedMetadata(gen, em)
+    } finally {
+      gen.close()
+    }
+  }
+
+  def write(
+    labeledData: LabeledData,
+    os: OutputStream,
+    pretty: Boolean,
+    skipFields: Set[String] = Set.empty
+  ): Unit = {
+    val gen = generator(os, pretty)
+    try {
+      writeLabeledData(gen, labeledData, skipFields)
+    } finally {
+      gen.close()
+    }
+  }
+
+  //
+  // ExtractedMetadata
+  //
+
+  private def writeStringOrNull(gen: JsonGenerator, name: String, value: String): Unit =
+    if (value == null) gen.writeNullField(name) else gen.writeStringField(name, value)
+
+  private def writePatternOrNull(gen: JsonGenerator, name: String, value: Pattern): Unit =
+    writeStringOrNull(gen, name, if (value == null) null else value.pattern())
+
+  private def writeList[T](
+    gen: JsonGenerator,
+    name: String,
+    list: JavaList[T]
+  )(
+    writeElement: T => Unit
+  ): Unit = {
+    gen.writeFieldName(name)
+    if (list == null) {
+      gen.writeNull()
+    } else {
+      gen.writeStartArray()
+      list.asScala.foreach(writeElement)
+      gen.writeEndArray()
+    }
+  }
+
+  private def writeStringList(gen: JsonGenerator, name: String, list: JavaList[String]): Unit =
+    writeList(gen, name, list) { s => if (s == null) gen.writeNull() else gen.writeString(s) }
+
+  def writeExtractedMetadata(gen: JsonGenerator, em: ExtractedMetadata): Unit = {
+    gen.writeStartObject()
+    writeStringOrNull(gen, "source", if (em.source == null) null else em.source.name())
+    writeStringOrNull(gen, "title", em.title)
+    writeStringList(gen, "authors", em.authors)
+    writeStringList(gen, "emails", em.emails)
+    writeList(gen, "sections", em.sections) { section =>
+      gen.writeStartObject()
+      writeStringOrNull(gen, "heading", section.heading)
+      writeStringOrNull(gen, "text", section.text)
+      gen.writeEndObject()
+    }
+    writeList(gen, "references", em.references) { bibRecord =>
+      gen.writeStartObject()
+      writeStringOrNull(gen, "title", bibRecord.title)
+      writeStringList(gen, "author", bibRecord.author)
+      writeStringOrNull(gen, "venue", bibRecord.venue)
+      writePatternOrNull(gen, "citeRegEx", bibRecord.citeRegEx)
+      writePatternOrNull(gen, "shortCiteRegEx", bibRecord.shortCiteRegEx)
+      gen.writeNumberField("year", bibRecord.year)
+      gen.writeEndObject()
+    }
+    writeList(gen, "referenceMentions", em.referenceMentions) { cr =>
+      gen.writeStartObject()
+      gen.writeNumberField("referenceID", cr.referenceID)
+      writeStringOrNull(gen, "context", cr.context)
+      gen.writeNumberField("startOffset", cr.startOffset)
+      gen.writeNumberField("endOffset", cr.endOffset)
+      gen.writeEndObject()
+    }
+    gen.writeNumberField("year", em.year)
+    writeStringOrNull(gen, "abstractText", em.abstractText)
+    writeStringOrNull(gen, "creator", em.creator)
+    if (em.trace != null)
+      writeParseTrace(gen, em.trace)
+    gen.writeEndObject()
+  }
+
+  /** The trace is for debugging only, so it is written only when there is one. */
+  private def writeParseTrace(gen: JsonGenerator, trace: ParseTrace): Unit =
+    writeList(gen, "trace", trace.getSpans) { span =>
+      gen.writeStartObject()
+      gen.writeStringField("name", span.name)
+      gen.writeNumberField("elapsedNanos", span.elapsedNanos)
+      gen.writeNumberField("allocatedBytes", span.allocatedBytes)
+      gen.writeEndObject()
+    }
+
+  //
+  // LabeledData
+  //
+  // spray-json leaves out fields that are None, so we do the same here.
+  //
+
+  private def writeOptionalString(gen: JsonGenerator, name: String, value: Option[String]): Unit =
+    value.foreach(v => gen.writeStringField(name, v))
+
+  private def writeOptionalInt(gen: JsonGenerator, name: String, value: Option[Int]): Unit =
+    value.foreach(v => gen.writeNumberField(name, v))
+
+  private def writeStrings(gen: JsonGenerator, name: String, values: Seq[String]): Unit = {
+    gen.writeArrayFieldStart(name)
+    values.foreach(v => gen.writeString(v))
+    gen.writeEndArray()
+  }
+
+  private def writeSection(gen: JsonGenerator, section: LabeledData.Section): Unit = {
+    gen.writeStartObject()
+    writeOptionalString(gen, "heading", section.heading)
+    gen.writeStringField("text", section.text)
+    gen.writeEndObject()
+  }
+
+  private def writeReference(gen: JsonGenerator, reference: LabeledData.Reference): Unit = {
+    gen.writeStartObject()
+    writeOptionalString(gen, "label", reference.label)
+    writeOptionalString(gen, "title", reference.title)
+    writeStrings(gen, "authors", reference.authors)
+    writeOptionalString(gen, "venue", reference.venue)
+    writeOptionalInt(gen, "year", reference.year)
+    writeOptionalString(gen, "volume", reference.volume)
+    reference.pageRange.foreach { case (start, end) =>
+      gen.writeArrayFieldStart("pageRange")
+      gen.writeString(start)
+      gen.writeString(end)
+      gen.writeEndArray()
+    }
+    gen.writeEndObject()
+  }
+
+  def writeLabeledData(
+    gen: JsonGenerator,
+    labeledData: LabeledData,
+    skipFields: Set[String] = Set.empty
+  ): Unit = {
+    def field(name: String)(write: => Unit): Unit =
+      if (!skipFields.contains(name))
+        write
+
+    gen.writeStartObject()
+    field("id") { gen.writeStringField("id", labeledData.id) }
+    field("title") { writeOptionalString(gen, "title", labeledData.title) }
+    field("authors") {
+      labeledData.authors.foreach { authors =>
+        gen.writeArrayFieldStart("authors")
+        authors.foreach { author =>
+          gen.writeStartObject()
+          gen.writeStringField("name", author.name)
+          writeOptionalString(gen, "email", author.email)
+          writeStrings(gen, "affiliations", author.affiliations)
+          gen.writeEndObject()
+        }
+        gen.writeEndArray()
+      }
+    }
+    field("venue") { writeOptionalString(gen, "venue", labeledData.venue) }
+    field("year") { writeOptionalInt(gen, "year", labeledData.year) }
+    field("abstractText") { writeOptionalString(gen, "abstractText", labeledData.abstractText) }
+    field("sections") {
+      labeledData.sections.foreach { sections =>
+        gen.writeArrayFieldStart("sections")
+        sections.foreach(writeSection(gen, _))
+        gen.writeEndArray()
+      }
+    }
+    field("references") {
+      labeledData.references.foreach { references =>
+        gen.writeArrayFieldStart("references")
+        references.foreach(writeReference(gen, _))
+        gen.writeEndArray()
+      }
+    }
+    field("mentions") {
+      labeledData.mentions.foreach { mentions =>
+        gen.writeArrayFieldStart("mentions")
+        mentions.foreach { mention =>
+          gen.writeStartObject()
+          gen.writeFieldName("reference")
+          writeReference(gen, mention.reference)
+          gen.writeStringField("text", mention.text)
+          mention.inContext.foreach { case (section, range) =>
+            gen.writeArrayFieldStart("inContext")
+            writeSection(gen, section)
+            gen.writeStartObject()
+            gen.writeNumberField("start", range.start)
+            gen.writeNumberField("end", range.end)
+            gen.writeEndObject()
+            gen.writeEndArray()
+          }
+          gen.writeEndObject()
+        }
+        gen.writeEndArray()
+      }
+    }
+    gen.writeEndObject()
+  }
+}
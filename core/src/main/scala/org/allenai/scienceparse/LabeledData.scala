@@ -502,18 +502,23 @@ object LabeledPapersFromResources extends Datastores {
 }
 
 object LabeledPapersFromScienceParse extends Logging {
-  def get(input: => InputStream, parser: Parser = Parser.getInstance()) = {
+  def get(input: => InputStream, parser: Parser = Parser.getInstance()): LabeledPaper =
+    getWithBackend(input, new ParsingBackend.InProcess(parser))
 
+  /** Returns the empty paper if parsing fails, except for papers that must not be parsed at all.
+    * Those throw WorkerPool.PoisonDocumentException or DocumentBudget.DocumentTooLargeException.
+    */
+  def getWithBackend(input: => InputStream, backend: ParsingBackend): LabeledPaper = {
     val digest = MessageDigest.getInstance("SHA-1")
     digest.reset()
-    val bytes = Resource.using(new DigestInputStream(input, digest))(IOUtils.toByteArray)
+    val bytes = Resource.using(new DigestInputStream(backend.budget.limit(input), digest))(IOUtils.toByteArray)
     val id = Utilities.toHex(digest.digest())
-    val labeledPaperId = s"SP:$id"
 
     val ld = try {
-      val output = Resource.using(new ByteArrayInputStream(bytes))(parser.doParse)
-      LabeledData.fromExtractedMetadata(labeledPaperId, output)
+      parse(bytes, id, backend)
     } catch {
+      case e @ (_: WorkerPool.PoisonDocumentException | _: DocumentBudget.DocumentTooLargeException) =>
+        throw e
       case NonFatal(e) =>
         logger.warn(s"Error while science-parsing", e)
         LabeledData.empty
@@ -522,6 +527,10 @@ object LabeledPapersFromScienceParse extends Logging {
     new LabeledPaper(input, ld, Some(id))
   }
 
+  /** Parses the paper with the given SHA, and lets all exceptions through */
+  def parse(bytes: Array[Byte], sha: String, backend: ParsingBackend): LabeledData =
+    LabeledData.fromExtractedMetadata(s"SP:$sha", backend.parse(bytes))
+
   def main(args: Array[String]): Unit = {
     val fromPMC = LabeledPapersFromPMC.get.take(100).toSeq.sortBy(_.paperId)
     val fromSp = fromPMC.par.map(labeledPaper => get(labeledPaper.inputStream))
@@ -0,0 +1,34 @@
+package org.allenai.scienceparse
+
+import java.io.ByteArrayInputStream
+
+/** Something that turns PDFs into ExtractedMetadata. The CLI and the server don't care whether
+  * that happens in their own JVM, or in worker processes.
+  */
+trait ParsingBackend {
+  /** Parses one PDF. Backends that can't record traces ignore the trace. */
+  def parse(pdf: Array[Byte], trace: ParseTrace = ParseTrace.DISABLED): ExtractedMetadata
+
+  /** The limits on the documents this backend accepts. Callers should apply them while reading a
+    * PDF, so that an oversized one never ends up on the heap.
+    */
+  def budget: DocumentBudget
+}
+
+object ParsingBackend {
+  /** Parses in this JVM.
+    *
+    * @param timeoutMs if positive, parses with Parser.doParseWithTimeout()
+    */
+  class InProcess(val parser: Parser, timeoutMs: Long = 0) extends ParsingBackend {
+    override def budget: DocumentBudget = parser.getBudget
+
+    override def parse(pdf: Array[Byte], trace: ParseTrace): ExtractedMetadata = {
+      val is = new ByteArrayInputStream(pdf)
+      if (timeoutMs > 0)
+        parser.doParseWithTimeout(is, timeoutMs, trace)
+      else
+        parser.doParse(is, Parser.MAXHEADERWORDS, trace)
+    }
+  }
+}
@@ -27,6 +27,10 @@ object Training extends App with Datastores with Logging {
     maxPaperCount: Int = 34000,
     excludeIdsFile: Option[File] = None,
     minExpectedFeatureCount: Int = 13,
+    tokenStore: Option[File] = None,
+    threads: Int = Runtime.getRuntime.availableProcessors() * 2,
+    checkpoint: Option[File] = None,
+    checkpointMinutes: Int = 10,
     trainingData: Iterator[LabeledPaper] = LabeledPapersFromDBLP.get
   )
 
@@ -77,6 +81,10 @@ object Training extends App with Datastores with Logging {
       c.copy(minExpectedFeatureCount = n)
     } text "The minimum number of times we should see a feature before accepting it."
 
+    opt[File]("tokenStore") action { (d, c) =>
+      c.copy(tokenStore = Some(d))
+    } text "A directory in which to keep the tokens extracted from training PDFs, so later runs don't have to extract them again"
+
     opt[Unit]("trainOnDBLP") action { (_, c) =>
       c.copy(trainingData = LabeledPapersFromDBLP.get)
     } text "Train with data from DBLP"
@@ -90,6 +98,20 @@ object Training extends App with Datastores with Logging {
       c.copy(trainingData = new InterleavingIterator(LabeledPapersFromPMC.getCleaned, LabeledPapersFromDBLP.get))
     } text "Train with data from DBLP and PMC"
 
+    opt[Int]("threads") action { (t, c) =>
+      c.copy(threads = t)
+    } text "The number of threads to compute gradients with"
+
+    opt[File]("checkpoint") action { (f, c) =>
+      c.copy(checkpoint = Some(f))
+    } text "A file to write the best model so far to while training. It's a fallback model if the run dies. Training can't resume from it."
+
+    opt[Int]("checkpointMinutes") action { (m, c) =>
+      c.copy(checkpointMinutes = m)
+    } validate { m =>
+      if (m > 0) success else failure("checkpointMinutes must be positive")
+    } text "How often to write the checkpoint, in minutes"
+
     help("help") text "Prints help text"
   }
 
@@ -98,7 +120,9 @@ object Training extends App with Datastores with Logging {
     opts.modelFile = config.output.toString
     opts.headerMax = config.maxHeaderWords
     opts.iterations = config.maxIterations
-    opts.threads = Runtime.getRuntime.availableProcessors() * 2
+    opts.threads = config.threads
+    opts.checkpointFile = config.checkpoint.map(_.toString).orNull
+    opts.checkpointIntervalMs = config.checkpointMinutes * 60L * 1000L
     opts.backgroundSamples = config.backgroundSampleDocs
 
     val backgroundDirectory =
@@ -113,6 +137,7 @@ object Training extends App with Datastores with Logging {
     opts.minYear = config.minYear
     opts.documentCount = config.maxPaperCount
     opts.minExpectedFeatureCount = config.minExpectedFeatureCount
+    opts.tokenStoreDirectory = config.tokenStore.map(_.toString).orNull
 
     val excludedIds = Evaluation.goldDocIds ++ config.excludeIdsFile.map { excludedIdsFile =>
       Resource.using(Source.fromFile(excludedIdsFile)) { source =>
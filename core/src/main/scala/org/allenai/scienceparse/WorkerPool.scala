@@ -0,0 +1,364 @@
+package org.allenai.scienceparse
+
+import java.io._
+import java.lang.ProcessBuilder.Redirect
+import java.lang.management.{ ManagementFactory, MemoryType }
+import java.nio.file.{ Path, Paths }
+import java.util.concurrent.atomic.{ AtomicInteger, AtomicLong }
+import java.util.concurrent.{ ConcurrentHashMap, LinkedBlockingQueue, TimeUnit }
+import java.util.{ Timer, TimerTask }
+
+import org.allenai.common.Logging
+import spray.json._
+
+import scala.collection.JavaConverters._
+import scala.util.control.NonFatal
+
+/** Parses PDFs in a pool of child JVMs, so that a PDF that exhausts the heap, or wedges pdfbox,
+  * takes down only one worker, and not the whole process.
+  *
+  * Each worker loads its own copy of the models, so every worker needs a full-size heap.
+  *
+  * Workers are restarted when they crash, when they take longer than hardTimeoutMs for one
+  * document, or when their heap after garbage collection is fuller than maxHeapFraction. Restarts
+  * happen in the background, so the pool keeps serving with fewer workers until the new worker
+  * has loaded its models. A document that kills maxCrashesPerDocument workers is considered
+  * poisonous, and is rejected from then on.
+  *
+  * @param timeoutMs if positive, workers parse with Parser.doParseWithTimeout()
+  * @param budget the limits on documents that the workers accept
+  * @param gazetteerFalsePositiveRate if positive, workers keep the gazetteer in a Bloom filter
+  *                                   with this false positive rate
+  */
+class WorkerPool(
+  workers: Int,
+  modelFile: Path,
+  gazetteerFile: Path,
+  bibModelFile: Path,
+  workerHeap: String = "6g",
+  timeoutMs: Long = 0,
+  hardTimeoutMs: Long = 5 * 60 * 1000,
+  maxHeapFraction: Double = 0.85,
+  maxCrashesPerDocument: Int = 2,
+  val budget: DocumentBudget = DocumentBudget.UNLIMITED,
+  gazetteerFalsePositiveRate: Double = 0
+) extends ParsingBackend with Closeable with Logging {
+  import WorkerPool._
+  import JsonProtocol._
+
+  require(workers > 0)
+
+  private val command = Seq(
+    Paths.get(System.getProperty("java.home"), "bin", "java").toString,
+    s"-Xmx$workerHeap",
+    "-XX:+ExitOnOutOfMemoryError",
+    "-cp", System.getProperty("java.class.path"),
+    ParseWorker.getClass.getName.stripSuffix("$"),
+    modelFile.toString,
+    gazetteerFile.toString,
+    bibModelFile.toString,
+    timeoutMs.toString,
+    budget.getMaxBytes.toString,
+    budget.getMaxPages.toString,
+    budget.getMaxMainMemoryBytes.toString,
+    gazetteerFalsePositiveRate.toString
+  )
+
+  private val nextWorkerId = new AtomicInteger()
+
+  private class Worker {
+    val id = nextWorkerId.incrementAndGet()
+    val process = new ProcessBuilder(command: _*).redirectError(Redirect.INHERIT).start()
+    private val toWorker = new DataOutputStream(new BufferedOutputStream(process.getOutputStream))
+    private val fromWorker = new DataInputStream(new BufferedInputStream(process.getInputStream))
+
+    /** Blocks until the worker has loaded its models */
+    def awaitReady(): Unit = {
+      val ready = fromWorker.readInt()
+      if (ready != Ready)
+        throw new IOException(s"Worker $id sent $ready instead of the ready signal")
+    }
+
+    /** Throws IOException if the worker dies */
+    def parse(pdf: Array[Byte]): Response = {
+      toWorker.writeInt(pdf.length)
+      toWorker.write(pdf)
+      toWorker.flush()
+
+      val status = fromWorker.readByte()
+      val liveHeapBytes = fromWorker.readLong()
+      val maxHeapBytes = fromWorker.readLong()
+      val payload = new Array[Byte](fromWorker.readInt())
+      fromWorker.readFully(payload)
+      Response(status, liveHeapBytes, maxHeapBytes, payload)
+    }
+
+    /** Asks the worker to exit by closing its input, and kills it if it doesn't. */
+    def stop(): Unit = {
+      try {
+        toWorker.close()
+      } catch {
+        case NonFatal(_) => // It's going away anyways.
+      }
+      if (!process.waitFor(10, TimeUnit.SECONDS))
+        process.destroyForcibly()
+    }
+  }
+
+  //
+  // Starting and stopping workers
+  //
+
+  private val idle = new LinkedBlockingQueue[Worker]()
+  private val allWorkers = ConcurrentHashMap.newKeySet[Worker]()
+  private val workerSlots = new AtomicInteger(workers)
+  @volatile private var closed = false
+
+  private val restartCount = new AtomicLong()
+  private val poisonCount = new AtomicLong()
+  def restarts: Long = restartCount.get()
+  def poisonDocuments: Long = poisonCount.get()
+  def idleWorkers: Int = idle.size()
+
+  /** Starts a worker and makes it available. Gives up on the slot after a few failed starts. */
+  private def startWorker(): Unit = {
+    var attempts = 0
+    while (!closed) {
+      attempts += 1
+      var worker: Worker = null
+      try {
+        worker = new Worker
+        allWorkers.add(worker)
+        worker.awaitReady()
+        logger.info(s"Worker ${worker.id} is ready")
+        if (closed)
+          worker.stop()
+        else
+          idle.put(worker)
+        return
+      } catch {
+        case NonFatal(e) =>
+          if (worker != null) {
+            allWorkers.remove(worker)
+            worker.process.destroyForcibly()
+          }
+          if (attempts >= maxStartAttempts) {
+            logger.error(s"Could not start a worker after $attempts attempts. Running with one worker less.", e)
+            workerSlots.decrementAndGet()
+            return
+          }
+          logger.warn(s"Worker failed to start. Trying again.", e)
+          Thread.sleep(1000L * attempts)
+      }
+    }
+  }
+
+  private def replaceInBackground(worker: Worker): Unit = {
+    allWorkers.remove(worker)
+    restartCount.incrementAndGet()
+    val t = new Thread(new Runnable {
+      override def run(): Unit = {
+        worker.stop()
+        startWorker()
+      }
+    }, s"WorkerPool-restart-${worker.id}")
+    t.setDaemon(true)
+    t.start()
+  }
+
+  // Start all workers at the same time, and wait until they are ready.
+  {
+    val starters = (1 to workers).map { i =>
+      val t = new Thread(new Runnable {
+        override def run(): Unit = startWorker()
+      }, s"WorkerPool-start-$i")
+      t.start()
+      t
+    }
+    starters.foreach(_.join())
+    if (workerSlots.get() == 0)
+      throw new IllegalStateException("Could not start any workers")
+  }
+
+  private def takeWorker(): Worker = {
+    var worker = idle.poll(1, TimeUnit.SECONDS)
+    while (worker == null) {
+      if (closed)
+        throw new IllegalStateException("The worker pool is closed")
+      if (workerSlots.get() == 0)
+        throw new IllegalStateException("All workers failed to start")
+      worker = idle.poll(1, TimeUnit.SECONDS)
+    }
+    worker
+  }
+
+  //
+  // Parsing
+  //
+
+  private val crashesPerDocument = new ConcurrentHashMap[String, Integer]()
+  private val addCrashes = new java.util.function.BiFunction[Integer, Integer, Integer] {
+    override def apply(a: Integer, b: Integer): Integer = a + b
+  }
+  private val watchdog = new Timer("WorkerPool watchdog", true)
+
+  override def parse(pdf: Array[Byte], trace: ParseTrace): ExtractedMetadata = {
+    // No need to send a worker what it would reject anyways
+    budget.checkBytes(pdf.length)
+
+    val sha = Utilities.shaForBytes(pdf)
+    var response: Response = null
+    while (response == null) {
+      if (crashesPerDocument.getOrDefault(sha, 0).intValue >= maxCrashesPerDocument)
+        throw new PoisonDocumentException(sha)
+
+      val worker = takeWorker()
+      // Kill the worker if it takes too long. The read in worker.parse() then fails.
+      val killer = new TimerTask {
+        override def run(): Unit = {
+          logger.warn(s"Killing worker ${worker.id} because document $sha took too long")
+          worker.process.destroyForcibly()
+        }
+      }
+      watchdog.schedule(killer, hardTimeoutMs)
+      try {
+        response = worker.parse(pdf)
+        // cancel() returns false if the killer already ran. Then we got the response, but the
+        // worker is dead, and must not go back to the idle workers.
+        if (!killer.cancel()) {
+          replaceInBackground(worker)
+        } else if (response.liveHeapBytes > maxHeapFraction * response.maxHeapBytes) {
+          logger.info(s"Restarting worker ${worker.id} because its heap is full")
+          replaceInBackground(worker)
+        } else {
+          idle.put(worker)
+        }
+      } catch {
+        case e: IOException =>
+          killer.cancel()
+          val crashes: Int = crashesPerDocument.merge(sha, 1, addCrashes)
+          logger.warn(s"Worker ${worker.id} died while parsing $sha ($crashes times so far)", e)
+          replaceInBackground(worker)
+          if (crashes >= maxCrashesPerDocument) {
+            poisonCount.incrementAndGet()
+            throw new PoisonDocumentException(sha)
+          }
+      }
+    }
+
+    response.status match {
+      case Ok => new String(response.payload, "UTF-8").parseJson.convertTo[ExtractedMetadata]
+      case TooLarge => throw new DocumentBudget.DocumentTooLargeException(new String(response.payload, "UTF-8"))
+      case _ => throw new WorkerException(new String(response.payload, "UTF-8"))
+    }
+  }
+
+  override def close(): Unit = {
+    closed = true
+    watchdog.cancel()
+    allWorkers.asScala.foreach(_.stop())
+    allWorkers.clear()
+  }
+}
+
+object WorkerPool {
+  /** The first thing a worker sends, once it has loaded its models */
+  val Ready = 0x53505752 // "SPWR"
+
+  val Ok: Byte = 0
+  val Failed: Byte = 1
+  val TooLarge: Byte = 2
+
+  private val maxStartAttempts = 3
+
+  /** A worker's answer. The payload is JSON for Ok, and an error message otherwise. */
+  private case class Response(status: Byte, liveHeapBytes: Long, maxHeapBytes: Long, payload: Array[Byte])
+
+  /** Thrown when parsing failed inside the worker */
+  class WorkerException(message: String) extends RuntimeException(message)
+
+  /** Thrown for documents that killed too many workers */
+  class PoisonDocumentException(sha: String)
+    extends RuntimeException(s"Document $sha killed too many workers. Not trying again.")
+
+  /** Bytes on the heap after the last garbage collection. That's a better measure of what a
+    * worker holds on to than the current heap usage, which includes garbage.
+    */
+  def liveHeapBytes: Long =
+    ManagementFactory.getMemoryPoolMXBeans.asScala.
+      filter(_.getType == MemoryType.HEAP).
+      flatMap(pool => Option(pool.getCollectionUsage)).
+      map(_.getUsed).
+      sum
+}
+
+/** The main class of the worker processes of WorkerPool.
+  *
+  * Protocol, over stdin and stdout, all numbers big-endian:
+  *  - The worker sends WorkerPool.Ready once it has loaded its models.
+  *  - Requests are an int length, followed by that many bytes of PDF.
+  *  - Responses are a byte status, the long live heap, the long maximum heap, an int length, and
+  *    that many bytes of payload.
+  * The worker exits when its input closes.
+  */
+object ParseWorker {
+  def main(args: Array[String]): Unit = {
+    // stdout belongs to the protocol. Everything else that prints goes to stderr.
+    val toPool = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)))
+    System.setOut(System.err)
+    val fromPool = new DataInputStream(new BufferedInputStream(new FileInputStream(FileDescriptor.in)))
+
+    val Array(
+      modelFile,
+      gazetteerFile,
+      bibModelFile,
+      timeoutString,
+      maxBytes,
+      maxPages,
+      maxMainMemoryBytes,
+      gazetteerFalsePositiveRate
+    ) = args
+    val scienceParser = new Parser(
+      new File(modelFile),
+      new File(gazetteerFile),
+      new File(bibModelFile),
+      PaperHashSet.forFalsePositiveRate(gazetteerFalsePositiveRate.toDouble))
+    scienceParser.setBudget(DocumentBudget.builder().
+      maxBytes(maxBytes.toLong).
+      maxPages(maxPages.toInt).
+      maxMainMemoryBytes(maxMainMemoryBytes.toLong).
+      build())
+    val parser = new ParsingBackend.InProcess(scienceParser, timeoutString.toLong)
+    toPool.writeInt(WorkerPool.Ready)
+    toPool.flush()
+
+    def readRequest(): Option[Array[Byte]] = try {
+      val pdf = new Array[Byte](fromPool.readInt())
+      fromPool.readFully(pdf)
+      Some(pdf)
+    } catch {
+      case _: EOFException => None
+    }
+
+    var request = readRequest()
+    while (request.isDefined) {
+      val (status, payload) = try {
+        val buffer = new ByteArrayOutputStream()
+        JsonStreamWriter.write(parser.parse(request.get), buffer, pretty = false)
+        (WorkerPool.Ok, buffer.toByteArray)
+      } catch {
+        case e: DocumentBudget.DocumentTooLargeException => (WorkerPool.TooLarge, e.getMessage.getBytes("UTF-8"))
+        case NonFatal(e) => (WorkerPool.Failed, e.toString.getBytes("UTF-8"))
+      }
+
+      toPool.writeByte(status)
+      toPool.writeLong(WorkerPool.liveHeapBytes)
+      toPool.writeLong(Runtime.getRuntime.maxMemory())
+      toPool.writeInt(payload.length)
+      toPool.write(payload)
+      toPool.flush()
+
+      request = readRequest()
+    }
+  }
+}
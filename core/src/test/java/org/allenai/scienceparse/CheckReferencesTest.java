@@ -5,8 +5,13 @@ import lombok.extern.slf4j.Slf4j;
 import org.allenai.datastore.Datastore;
 import org.testng.annotations.Test;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Random;
 
 @Test
 @Slf4j
@@ -36,4 +41,99 @@ public class CheckReferencesTest {
         "David Newman",
         "Padhraic Smyth"), 2013, "KDD"));
   }
+
+  public void cacheTest() throws IOException {
+    final File gazetteerFile = new File(CheckReferencesTest.class.getResource("/groundTruth.json").getFile());
+    final Path cacheDirectory = Files.createTempDirectory("gazetteerCache");
+    try {
+      final CheckReferences built = CheckReferences.loadCached(gazetteerFile, cacheDirectory);
+      Assert.assertEquals(1, cacheDirectory.toFile().list().length);
+      final CheckReferences cached = CheckReferences.loadCached(gazetteerFile, cacheDirectory);
+      Assert.assertEquals(built.getHashSize(), cached.getHashSize());
+
+      final ParserGroundTruth pgt = new ParserGroundTruth(gazetteerFile.getPath());
+      for(final ParserGroundTruth.Paper p : pgt.papers)
+        Assert.assertTrue(cached.hasPaper(p.title, Arrays.asList(p.authors), p.year, p.venue));
+      Assert.assertFalse(cached.hasPaper(
+        "Fake paper titles: A case study in negative examples",
+        Arrays.asList("Kevin Bache"), 2013, "KDD"));
+    } finally {
+      for(final File f : cacheDirectory.toFile().listFiles())
+        f.delete();
+      Files.delete(cacheDirectory);
+    }
+  }
+
+  public void streamingMatchesGroundTruthTest() throws IOException {
+    final String jsonFile = CheckReferencesTest.class.getResource("/groundTruth.json").getFile();
+    final ParserGroundTruth pgt = new ParserGroundTruth(jsonFile);
+    final CheckReferences streamed = new CheckReferences(jsonFile);
+    final CheckReferences bound = new CheckReferences(pgt.papers);
+    Assert.assertEquals(bound.getHashSize(), streamed.getHashSize());
+    for(final ParserGroundTruth.Paper p : pgt.papers) {
+      Assert.assertEquals(
+        bound.getHashCode(p.title, Arrays.asList(p.authors), p.year, p.venue),
+        streamed.getHashCode(p.title, Arrays.asList(p.authors), p.year, p.venue));
+      Assert.assertTrue(streamed.hasPaper(p.title, Arrays.asList(p.authors), p.year, p.venue));
+    }
+  }
+
+  public void bloomFilterTest() throws IOException {
+    final Random random = new Random(42);
+    final long[] hashes = new long[100000];
+    for(int i = 0; i < hashes.length; i++)
+      hashes[i] = random.nextLong();
+    Arrays.sort(hashes);
+    final PaperHashSet bloom = PaperHashSet.bloomFilter(0.01).build(hashes);
+    Assert.assertEquals(hashes.length, bloom.size());
+    for(final long hash : hashes)
+      Assert.assertTrue(bloom.contains(hash));
+
+    int falsePositives = 0;
+    for(int i = 0; i < 100000; i++) {
+      if(bloom.contains(random.nextLong()))
+        falsePositives += 1;
+    }
+    log.info("Bloom filter false positives: " + falsePositives);
+    Assert.assertTrue(falsePositives < 2000);
+  }
+
+  public void bloomFilterCacheTest() throws IOException {
+    final File gazetteerFile = new File(CheckReferencesTest.class.getResource("/groundTruth.json").getFile());
+    final Path cacheDirectory = Files.createTempDirectory("gazetteerCache");
+    try {
+      final PaperHashSet.Factory factory = PaperHashSet.bloomFilter(0.001);
+      CheckReferences.loadCached(gazetteerFile, cacheDirectory, factory);
+      final CheckReferences cached = CheckReferences.loadCached(gazetteerFile, cacheDirectory, factory);
+      final ParserGroundTruth pgt = new ParserGroundTruth(gazetteerFile.getPath());
+      Assert.assertEquals(pgt.papers.size(), cached.getHashSize());
+      for(final ParserGroundTruth.Paper p : pgt.papers)
+        Assert.assertTrue(cached.hasPaper(p.title, Arrays.asList(p.authors), p.year, p.venue));
+    } finally {
+      for(final File f : cacheDirectory.toFile().listFiles())
+        f.delete();
+      Files.delete(cacheDirectory);
+    }
+  }
+
+  public void windowedCacheTest() throws IOException {
+    final String jsonFile = CheckReferencesTest.class.getResource("/groundTruth.json").getFile();
+    final ParserGroundTruth pgt = new ParserGroundTruth(jsonFile);
+    final Path cacheDirectory = Files.createTempDirectory("gazetteerCache");
+    try {
+      for(final PaperHashSet.Factory factory : Arrays.asList(PaperHashSet.exact(), PaperHashSet.bloomFilter(0.001))) {
+        final Path cacheFile = cacheDirectory.resolve(factory.name());
+        new CheckReferences(new FileInputStream(jsonFile), factory).writeCache(cacheFile);
+        // Eight longs per window, so the data is spread over many windows, like a cache over 2GB.
+        final CheckReferences cached = CheckReferences.readCache(cacheFile, 3);
+        Assert.assertEquals(pgt.papers.size(), cached.getHashSize());
+        for(final ParserGroundTruth.Paper p : pgt.papers)
+          Assert.assertTrue(cached.hasPaper(p.title, Arrays.asList(p.authors), p.year, p.venue));
+      }
+    } finally {
+      for(final File f : cacheDirectory.toFile().listFiles())
+        f.delete();
+      Files.delete(cacheDirectory);
+    }
+  }
 }
@@ -0,0 +1,62 @@
+package org.allenai.scienceparse;
+
+import org.apache.commons.io.IOUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+
+@Test
+public class DocumentBudgetTest {
+  public void testLimitBytes() throws Exception {
+    final DocumentBudget budget = DocumentBudget.builder().maxBytes(10).build();
+    Assert.assertEquals(IOUtils.toByteArray(budget.limit(new ByteArrayInputStream(new byte[10]))).length, 10);
+    try {
+      IOUtils.toByteArray(budget.limit(new ByteArrayInputStream(new byte[11])));
+      Assert.fail("Reading 11 bytes should have failed");
+    } catch(final DocumentBudget.DocumentTooLargeException e) {
+      // expected
+    }
+
+    final InputStream is = new ByteArrayInputStream(new byte[1000]);
+    Assert.assertSame(DocumentBudget.UNLIMITED.limit(is), is);
+  }
+
+  public void testCheckBytes() {
+    DocumentBudget.UNLIMITED.checkBytes(Long.MAX_VALUE);
+    DocumentBudget.builder().maxBytes(10).build().checkBytes(10);
+    try {
+      DocumentBudget.builder().maxBytes(10).build().checkBytes(11);
+      Assert.fail("11 bytes should have been too many");
+    } catch(final DocumentBudget.DocumentTooLargeException e) {
+      // expected
+    }
+  }
+
+  public void testCheckPages() {
+    DocumentBudget.UNLIMITED.checkPages(100000);
+    DocumentBudget.builder().maxPages(5).build().checkPages(5);
+    try {
+      DocumentBudget.builder().maxPages(5).build().checkPages(6);
+      Assert.fail("Six pages should have been too many");
+    } catch(final DocumentBudget.DocumentTooLargeException e) {
+      // expected
+    }
+  }
+
+  public void testParserRejectsLongDocuments() throws Exception {
+    // Parser.getInstance() is shared with other tests, so we put its budget back when we're done.
+    final Parser parser = Parser.getInstance();
+    final DocumentBudget previousBudget = parser.getBudget();
+    parser.setBudget(DocumentBudget.UNLIMITED.toBuilder().maxPages(1).build());
+    try(final InputStream is = getClass().getResourceAsStream("/P14-1059.pdf")) {
+      parser.doParse(is);
+      Assert.fail("A one-page budget should have rejected the paper");
+    } catch(final DocumentBudget.DocumentTooLargeException e) {
+      // expected
+    } finally {
+      parser.setBudget(previousBudget);
+    }
+  }
+}
@@ -1,10 +1,15 @@
 package org.allenai.scienceparse;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 
 import org.testng.annotations.Test;
 
+import com.gs.collections.impl.tuple.Tuples;
+
 import junit.framework.Assert;
 import lombok.val;
 import lombok.extern.slf4j.Slf4j;
@@ -65,4 +70,44 @@ public class GazetteerFeaturesTest {
     Assert.assertEquals(1.0, preds.get(6).get("%gaz_E_education.university.small.txt"));
     
   }
+
+  public void testSpansMatchStringLookup() throws Exception {
+    List<String> elems = Arrays.asList(
+      "Dr.", "Abbey", "(", "Marinello", "School", "of", "Beauty", ")", "and", "Apollo", "College", "Phoenix", "Inc.");
+    GazetteerFeatures gf = new GazetteerFeatures(filePathOfResource("/gazetteer-test/"));
+    List<String> expected = new ArrayList<>();
+    for(int gn = 0; gn < gf.size(); gn++) {
+      for(int i = 0; i < elems.size(); i++) {
+        for(int j = 0; j < Math.min(7, elems.size() + 1 - i); j++) {
+          if(gf.inSet(gf.getStringSpan(elems, i, j), gn))
+            expected.add(gn + ":" + Tuples.pair(i, i + j));
+        }
+      }
+    }
+    List<String> actual = new ArrayList<>();
+    for(ExtractedMetadata.LabelSpan ls : gf.getSpans(elems))
+      actual.add(gf.gazetteerNumber(ls.tag) + ":" + ls.loc);
+    Assert.assertEquals(6, expected.size());
+    Assert.assertEquals(expected, actual);
+  }
+
+  public void testTableFile() throws Exception {
+    GazetteerFeatures gf = new GazetteerFeatures(filePathOfResource("/gazetteer-test/"));
+    Path tableFile = Files.createTempFile("gazetteers", ".table");
+    try {
+      gf.writeTable(tableFile);
+      GazetteerFeatures mapped = GazetteerFeatures.fromTable(tableFile);
+      Assert.assertEquals(gf.size(), mapped.size());
+      int univId = mapped.gazetteerNumber("education.university.small.txt");
+      Assert.assertEquals(3, mapped.sizeOfSet(univId));
+      Assert.assertTrue(mapped.inSet("Apollo College Phoenix Inc.", univId));
+      Assert.assertEquals(gf.gazetteerMask("Abbey"), mapped.gazetteerMask("Abbey"));
+      Assert.assertEquals(0L, mapped.gazetteerMask("d. wilkins school of windmill dunks"));
+
+      List<String> elems = Arrays.asList("Abbey", "is", "at", "Apollo", "College", "Phoenix", "Inc.");
+      Assert.assertEquals(gf.getSpans(elems).size(), mapped.getSpans(elems).size());
+    } finally {
+      Files.delete(tableFile);
+    }
+  }
 }
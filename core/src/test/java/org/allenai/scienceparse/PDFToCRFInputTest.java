@@ -15,6 +15,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.sql.Date;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -112,4 +113,29 @@ public class PDFToCRFInputTest {
     Assert.assertEquals(result.get(41).getTwo(), "B_A");
     Assert.assertEquals(result.get(42).getTwo(), "E_A");
   }
+
+  public void testAlignerMatchesPatternEnd() throws IOException {
+    InputStream pdfInputStream = PDFToCRFInputTest.class.getResourceAsStream("/P14-1059.pdf");
+    PDFDoc doc = new PDFExtractor().extractFromInputStream(pdfInputStream);
+    List<String> seq = PDFToCRFInput.asStringList(PDFToCRFInput.getSequence(doc));
+    HeaderAligner aligner = new HeaderAligner(seq);
+    for (String author : Arrays.asList("Georgiana Dinu", "Marco C. Baroni", "M. Baroni", "Nobody Here", "Phrase")) {
+      List<Pair<Pattern, Boolean>> authOpt = PDFToCRFInput.authorToPatternOptPair(author);
+      Pair<Integer, Integer> expected = null;
+      for (int i = 0; i < seq.size() && expected == null; i++) {
+        int end = PDFToCRFInput.findPatternEnd(seq, authOpt, i, 0);
+        if (end >= 0)
+          expected = Tuples.pair(i, end);
+      }
+      Assert.assertEquals(aligner.findAuthor(author), expected, author);
+    }
+    Assert.assertEquals(aligner.findString("Phrase generation in distributional semantics"), Tuples.pair(32, 37));
+    Assert.assertNull(aligner.findString("this string won't be found"));
+  }
+
+  public void testAlignerEmptyPattern() {
+    Assert.assertNull(new HeaderAligner(Arrays.asList("a", "b")).findPatternSequence(Collections.emptyList()));
+    Assert.assertNull(new HeaderAligner(Collections.emptyList()).findPatternSequence(Collections.emptyList()));
+    Assert.assertNull(new HeaderAligner(Arrays.asList("a", "b")).findString("  "));
+  }
 }
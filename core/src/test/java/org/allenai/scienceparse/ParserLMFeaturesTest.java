@@ -6,6 +6,8 @@ import lombok.extern.slf4j.Slf4j;
 import org.testng.annotations.Test;
 
 import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
 
 @Test
 @Slf4j
@@ -26,4 +28,54 @@ public class ParserLMFeaturesTest {
     Assert.assertTrue(plf.backgroundBow.get("of") > 2.0);
   }
 
+  public void testFrequencies() throws Exception {
+    File f = new File(filePathOfResource("/groundTruth.json"));
+    ParserGroundTruth pgt = new ParserGroundTruth(f.getPath());
+    ParserLMFeatures plf = new ParserLMFeatures(pgt.papers, new UnifiedSet<String>(), f.getParentFile(), 3);
+    ParserLMFeatures.Frequencies freqs = plf.frequencies();
+    for(String tok : new String[] { "of", "Seebode", "Disk-based", "notAWordAnywhere" }) {
+      int row = freqs.row(tok);
+      Assert.assertEquals(
+        PDFPredicateExtractor.smoothFreq(tok, plf.titleBow),
+        freqs.smoothFreq(row, ParserLMFeatures.Column.TITLE));
+      Assert.assertEquals(
+        PDFPredicateExtractor.smoothFreq(tok, plf.authorBow),
+        freqs.smoothFreq(row, ParserLMFeatures.Column.AUTHOR));
+      Assert.assertEquals(
+        PDFPredicateExtractor.smoothFreq(tok, plf.backgroundBow),
+        freqs.smoothFreq(row, ParserLMFeatures.Column.BACKGROUND));
+    }
+    Assert.assertEquals(-1, freqs.row("notAWordAnywhere"));
+
+    final int row = freqs.row("of");
+    final double background = freqs.count(row, ParserLMFeatures.Column.BACKGROUND);
+    plf.dropBagsOfWords();
+    Assert.assertTrue(plf.bagsOfWordsDropped());
+    Assert.assertTrue(plf.backgroundBow.isEmpty());
+    Assert.assertEquals(plf.frequencies().count(row, ParserLMFeatures.Column.BACKGROUND), background);
+  }
+
+  public void testBackgroundTokens() throws Exception {
+    File f = new File(filePathOfResource("/groundTruth.json"));
+    ParserGroundTruth pgt = new ParserGroundTruth(f.getPath());
+    Path backgroundDir = Files.createTempDirectory("background");
+    try {
+      for(String paper : new String[] { "/P14-1059.pdf", "/map-reduce.pdf" })
+        Files.copy(new File(filePathOfResource(paper)).toPath(), backgroundDir.resolve(paper.substring(1)));
+      ParserLMFeatures fromPdfs =
+        new ParserLMFeatures(pgt.papers, new UnifiedSet<String>(), backgroundDir.toFile(), 2);
+
+      ParserLMFeatures.writeBackgroundText(backgroundDir.toFile());
+      Assert.assertTrue(backgroundDir.resolve("P14-1059.tokens").toFile().exists());
+      ParserLMFeatures fromTokens =
+        new ParserLMFeatures(pgt.papers, new UnifiedSet<String>(), backgroundDir.toFile(), 2);
+
+      Assert.assertTrue(fromPdfs.backgroundBow.get("of") > 2.0);
+      Assert.assertEquals(fromPdfs.backgroundBow, fromTokens.backgroundBow);
+    } finally {
+      for(File file : backgroundDir.toFile().listFiles())
+        file.delete();
+      Files.delete(backgroundDir);
+    }
+  }
 }
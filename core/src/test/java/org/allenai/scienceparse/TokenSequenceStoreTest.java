@@ -0,0 +1,81 @@
+package org.allenai.scienceparse;
+
+import org.allenai.scienceparse.pdfapi.PDFDoc;
+import org.allenai.scienceparse.pdfapi.PDFExtractor;
+import org.allenai.scienceparse.pdfapi.PDFToken;
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+@Test
+public class TokenSequenceStoreTest {
+  private static List<String> describe(final List<PaperToken> sequence) {
+    return sequence.stream().map(token -> {
+      final PDFToken t = token.getPdfToken();
+      return String.format(
+          "%d/%d/%s/%s/%s/%s",
+          token.getPage(),
+          token.getLine(),
+          t.token,
+          t.fontMetrics,
+          t.bounds,
+          t.superscripts);
+    }).collect(Collectors.toList());
+  }
+
+  public void testRoundTrip() throws Exception {
+    final PDFDoc doc;
+    try(final InputStream is = getClass().getResourceAsStream("/P14-1059.pdf")) {
+      doc = new PDFExtractor().extractFromInputStream(is);
+    }
+    final List<PaperToken> seq = PDFToCRFInput.getSequence(doc).subList(0, 500);
+
+    final Path dir = Files.createTempDirectory("tokenStore");
+    try {
+      try(final TokenSequenceStore store = TokenSequenceStore.open(dir, 500)) {
+        Assert.assertNull(store.get("abc"));
+        store.put("abc", seq);
+        store.put("failed", Collections.emptyList());
+      }
+
+      try(final TokenSequenceStore store = TokenSequenceStore.open(dir, 500)) {
+        Assert.assertEquals(store.size(), 2);
+        final List<PaperToken> stored = store.get("abc");
+        Assert.assertEquals(describe(stored), describe(seq));
+        Assert.assertEquals(stored.get(0).getPdfToken().fontId(), seq.get(0).getPdfToken().fontId());
+        Assert.assertTrue(store.get("failed").isEmpty());
+      }
+
+      try(final TokenSequenceStore store = TokenSequenceStore.open(dir, 100)) {
+        Assert.assertEquals(store.size(), 0);
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir.toFile());
+    }
+  }
+
+  public void testFinishedSegmentsSurviveWithoutClose() throws Exception {
+    final Path dir = Files.createTempDirectory("tokenStore");
+    try {
+      // Never closed, like a run that gets killed
+      final TokenSequenceStore interrupted = TokenSequenceStore.open(dir, 500, 2);
+      for(int i = 0; i < 5; i++)
+        interrupted.put("paper" + i, Collections.emptyList());
+
+      try(final TokenSequenceStore store = TokenSequenceStore.open(dir, 500)) {
+        Assert.assertEquals(store.size(), 4);
+        Assert.assertNotNull(store.get("paper3"));
+        Assert.assertNull(store.get("paper4"));
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir.toFile());
+    }
+  }
+}
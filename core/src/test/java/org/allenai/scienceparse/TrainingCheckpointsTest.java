@@ -0,0 +1,83 @@
+package org.allenai.scienceparse;
+
+import org.apache.commons.io.FileUtils;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToDoubleFunction;
+import java.util.stream.Stream;
+
+@Test
+public class TrainingCheckpointsTest {
+  private static String read(final Path file) throws IOException {
+    try(final DataInputStream dis = new DataInputStream(Files.newInputStream(file))) {
+      return dis.readUTF();
+    }
+  }
+
+  public void testWritesBestModel() throws Exception {
+    final Path dir = Files.createTempDirectory("checkpoints");
+    final Path file = dir.resolve("model.dat");
+    final AtomicInteger writes = new AtomicInteger();
+    // The interval is long enough that only our own calls to checkpoint() write anything.
+    try(final TrainingCheckpoints<String> checkpoints =
+          new TrainingCheckpoints<>(file, 60 * 60 * 1000, (dos, model) -> {
+            writes.incrementAndGet();
+            dos.writeUTF(model);
+          })) {
+      checkpoints.checkpoint();
+      Assert.assertFalse(Files.exists(file));
+
+      final ToDoubleFunction<String> evalFn = checkpoints.tracking(model -> model.length());
+      Assert.assertEquals(evalFn.applyAsDouble("aaa"), 3.0);
+      evalFn.applyAsDouble("b");
+      checkpoints.checkpoint();
+      Assert.assertEquals(read(file), "aaa");
+
+      // Nothing better came along, so there is nothing new to write.
+      checkpoints.checkpoint();
+      Assert.assertEquals(writes.get(), 1);
+
+      evalFn.applyAsDouble("cccc");
+      checkpoints.checkpoint();
+      Assert.assertEquals(read(file), "cccc");
+      Assert.assertEquals(writes.get(), 2);
+
+      try(final Stream<Path> files = Files.list(dir)) {
+        Assert.assertEquals(files.count(), 1L, "temporary files should be gone");
+      }
+    } finally {
+      FileUtils.deleteDirectory(dir.toFile());
+    }
+  }
+
+  @Test(expectedExceptions = IllegalArgumentException.class)
+  public void testRejectsZeroInterval() {
+    new TrainingCheckpoints<String>(Paths.get("model.dat"), 0, (dos, model) -> dos.writeUTF(model));
+  }
+
+  public void testFailedWriteKeepsPreviousCheckpoint() throws Exception {
+    final Path dir = Files.createTempDirectory("checkpoints");
+    final Path file = dir.resolve("model.dat");
+    try(final TrainingCheckpoints<String> checkpoints =
+          new TrainingCheckpoints<>(file, 60 * 60 * 1000, (dos, model) -> {
+            if(model.equals("broken"))
+              throw new IOException("can't write this");
+            dos.writeUTF(model);
+          })) {
+      checkpoints.offer("good", 1.0);
+      checkpoints.checkpoint();
+      checkpoints.offer("broken", 2.0);
+      checkpoints.checkpoint();
+      Assert.assertEquals(read(file), "good");
+    } finally {
+      FileUtils.deleteDirectory(dir.toFile());
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package org.allenai.scienceparse;
+
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+@Test
+public class VocabularyTest {
+  public void testLookup() {
+    // ASCII, two and three byte chars, a surrogate pair, the empty string, and a duplicate
+    final List<String> strings = Arrays.asList("paper", "Müller", "理論", "𝜋", "", "a", "paper");
+    final Vocabulary vocabulary = new Vocabulary(strings);
+    Assert.assertEquals(vocabulary.size(), 6);
+
+    for(final String s : strings) {
+      final int index = vocabulary.indexOf(s);
+      Assert.assertTrue(index >= 0, "missing " + s);
+      Assert.assertEquals(vocabulary.get(index), s);
+    }
+
+    // Indices are ranks in sorted order.
+    Assert.assertEquals(vocabulary.indexOf(""), 0);
+    Assert.assertEquals(vocabulary.indexOf("Müller"), 1);
+    Assert.assertEquals(vocabulary.indexOf("a"), 2);
+  }
+
+  public void testMissing() {
+    final Vocabulary vocabulary = new Vocabulary(Arrays.asList("paper", "Müller"));
+    Assert.assertEquals(vocabulary.indexOf("pape"), -1);
+    Assert.assertEquals(vocabulary.indexOf("papers"), -1);
+    Assert.assertEquals(vocabulary.indexOf("Muller"), -1);
+    Assert.assertEquals(vocabulary.indexOf(""), -1);
+
+    final Vocabulary empty = new Vocabulary(Collections.emptyList());
+    Assert.assertEquals(empty.size(), 0);
+    Assert.assertEquals(empty.indexOf("paper"), -1);
+  }
+}
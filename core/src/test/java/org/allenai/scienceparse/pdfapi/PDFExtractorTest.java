@@ -183,6 +183,24 @@ public class
     }
   }
   
+  @Test
+  public void testFontsAreInternedPerDocument() throws Exception {
+    InputStream pdfInputStream = getClass().getResourceAsStream("/P14-1059.pdf");
+    PDFDoc doc = new PDFExtractor().extractFromInputStream(pdfInputStream);
+
+    Assert.assertFalse(doc.fonts.isEmpty());
+    int numTokens = 0;
+    for(PDFPage p : doc.pages) {
+      for(PDFLine l : p.lines) {
+        for(PDFToken t : l.tokens) {
+          Assert.assertSame(doc.fonts.get(t.fontId()), t.fontMetrics);
+          numTokens += 1;
+        }
+      }
+    }
+    Assert.assertTrue(doc.fonts.size() < numTokens / 10);
+  }
+
   public void testPDFBenchmark() throws Exception {
     long numTitleBytes = 0L;
     for (int idx = 0; idx < 10; ++idx) {
@@ -0,0 +1,90 @@
+package org.allenai.scienceparse.pdfapi;
+
+import com.gs.collections.impl.list.mutable.primitive.FloatArrayList;
+import com.gs.collections.impl.list.mutable.primitive.IntArrayList;
+import org.testng.Assert;
+import org.testng.annotations.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+@Test
+public class PDFTokenTest {
+  private static final PDFFontMetrics font = new PDFFontMetrics(0, "font", 10.0f, 2.5f);
+
+  private static PDFToken token(final String text, final int... superscripts) {
+    return PDFToken.builder().
+        token(text).
+        fontMetrics(font).
+        bounds(FloatArrayList.newListWith(0, 0, 10, 10)).
+        superscripts(superscripts.length == 0 ? PDFToken.NO_SUPERSCRIPTS : IntArrayList.newListWith(superscripts)).
+        build();
+  }
+
+  private static PDFLine line(final PDFToken... tokens) {
+    return PDFLine.builder().tokens(Arrays.asList(tokens)).build();
+  }
+
+  private static PDFPage page(final PDFLine... lines) {
+    return PDFPage.builder().lines(Arrays.asList(lines)).pageNumber(0).pageWidth(100).pageHeight(100).build();
+  }
+
+  private static PDFDoc doc(final PDFPage... pages) {
+    return PDFDoc.builder().pages(Arrays.asList(pages)).fonts(Collections.singletonList(font)).build();
+  }
+
+  public void testTokenWithoutSuperscripts() {
+    final PDFToken plain = token("Smith");
+    Assert.assertSame(plain.withoutSuperscripts(), plain);
+
+    // "Smith⍐1,2⍗and⍐3⍗" has superscripts at [5, 10) and [13, 16)
+    final PDFToken withSuperscripts = token("Smith⍐1,2⍗and⍐3⍗", 5, 10, 13, 16);
+    Assert.assertTrue(withSuperscripts.hasSuperscripts());
+    final PDFToken stripped = withSuperscripts.withoutSuperscripts();
+    Assert.assertEquals(stripped.token, "Smithand");
+    Assert.assertFalse(stripped.hasSuperscripts());
+    Assert.assertSame(stripped.fontMetrics, font);
+    Assert.assertEquals(stripped.bounds, withSuperscripts.bounds);
+
+    Assert.assertNull(token("⍐1⍗", 0, 3).withoutSuperscripts());
+  }
+
+  public void testWithTokenDropsSuperscripts() {
+    final PDFToken original = token("Smith⍐1⍗", 5, 8);
+    Assert.assertSame(original.withToken(original.token), original);
+
+    final PDFToken renamed = original.withToken("Jones");
+    Assert.assertEquals(renamed.token, "Jones");
+    Assert.assertFalse(renamed.hasSuperscripts());
+    Assert.assertSame(renamed.withoutSuperscripts(), renamed);
+  }
+
+  public void testLineWithoutSuperscripts() {
+    final PDFToken plain = token("Smith");
+    final PDFLine plainLine = line(plain, token("and"));
+    Assert.assertSame(plainLine.withoutSuperscripts(), plainLine);
+
+    final PDFLine stripped = line(plain, token("Jones⍐2⍗", 5, 8), token("⍐3⍗", 0, 3)).withoutSuperscripts();
+    Assert.assertEquals(stripped.lineText(), "Smith Jones");
+    Assert.assertSame(stripped.tokens.get(0), plain);
+  }
+
+  public void testPageAndDocWithoutSuperscripts() {
+    final PDFLine plainLine = line(token("Smith"));
+    final PDFPage plainPage = page(plainLine);
+    Assert.assertSame(plainPage.withoutSuperscripts(), plainPage);
+    final PDFDoc plainDoc = doc(plainPage);
+    Assert.assertSame(plainDoc.withoutSuperscripts(), plainDoc);
+
+    // A line with nothing but superscripts disappears from its page.
+    final PDFPage page = page(plainLine, line(token("⍐1⍗", 0, 3)), line(token("Jones⍐2⍗", 5, 8)));
+    final PDFPage strippedPage = page.withoutSuperscripts();
+    Assert.assertEquals(strippedPage.lines.size(), 2);
+    Assert.assertSame(strippedPage.lines.get(0), plainLine);
+    Assert.assertEquals(strippedPage.lines.get(1).lineText(), "Jones");
+
+    final PDFDoc strippedDoc = doc(plainPage, page).withoutSuperscripts();
+    Assert.assertSame(strippedDoc.pages.get(0), plainPage);
+    Assert.assertEquals(strippedDoc.pages.get(1).lines.size(), 2);
+  }
+}
@@ -1,5 +1,6 @@
 package org.allenai.scienceparse
 
+import java.io.ByteArrayOutputStream
 import java.util
 import java.util.regex.Pattern
 
@@ -123,4 +124,62 @@ class JsonProtocolSpec extends UnitSpec {
     assertResult(labeledData.references)(labeledDataFromJson.references)
     //assertResult(labeledData.mentions)(labeledDataFromJson.mentions)
   }
+
+  "JsonStreamWriter" should "write the same JSON as JsonProtocol" in {
+    val em = new ExtractedMetadata(
+      "The Brand Personality of Rocks: A Critical Evaluation of a Brand Personality Scale",
+      util.Arrays.asList("Mark Avis", "Sarah Forbes", "Shelagh Ferguson"),
+      null)
+    em.year = 2014
+    em.sections = util.Arrays.asList(
+      new Section("Introduction", "In this paper, ..."),
+      new Section(null, "Furthermore, \"quoted\" ...")
+    )
+    em.references = util.Arrays.asList(
+      new BibRecord(
+        "Dimensions of Brand Personality",
+        util.Arrays.asList("Aaker, D"),
+        "Journal of Marketing Research",
+        Pattern.compile("Aaker et al\\."),
+        null,
+        1997
+      )
+    )
+    em.referenceMentions = util.Arrays.asList(
+      new CitationRecord(1, "As [1] held these truths to be self-evident, ...", 3, 6)
+    )
+    em.source = ExtractedMetadata.Source.META
+
+    for (pretty <- Seq(false, true)) {
+      val emOut = new ByteArrayOutputStream()
+      JsonStreamWriter.write(em, emOut, pretty)
+      assertResult(em.toJson)(emOut.toString("UTF-8").parseJson)
+
+      val labeledData = LabeledData.fromExtractedMetadata("test", em)
+      val ldOut = new ByteArrayOutputStream()
+      JsonStreamWriter.write(labeledData, ldOut, pretty, Set("sections"))
+      assertResult(JsObject(labeledData.toJson.asJsObject.fields - "sections"))(
+        ldOut.toString("UTF-8").parseJson)
+    }
+  }
+
+  it should "write the trace only when there is one" in {
+    val em = new ExtractedMetadata("Title", util.Arrays.asList("Author"), null)
+    val untraced = new ByteArrayOutputStream()
+    JsonStreamWriter.write(em, untraced, pretty = false)
+    assert(!untraced.toString("UTF-8").parseJson.asJsObject.fields.contains("trace"))
+
+    em.trace = new ParseTrace()
+    em.trace.start("loadPdf").end()
+    em.trace.start("extractText").end()
+    val traced = new ByteArrayOutputStream()
+    JsonStreamWriter.write(em, traced, pretty = false)
+    val json = traced.toString("UTF-8").parseJson
+    assertResult(em.toJson)(json)
+    val names = json.asJsObject.fields("trace") match {
+      case JsArray(spans) => spans.map(_.asJsObject.fields("name"))
+      case _ => fail("trace is not an array")
+    }
+    assertResult(Seq(JsString("loadPdf"), JsString("extractText")))(names)
+  }
 }
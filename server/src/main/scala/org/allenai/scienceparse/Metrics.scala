@@ -0,0 +1,153 @@
+package org.allenai.scienceparse
+
+import java.lang.management.ManagementFactory
+import java.util.concurrent.atomic.{ AtomicLong, DoubleAdder, LongAdder }
+
+import scala.collection.JavaConverters._
+
+/** A small in-process metrics registry that renders in the Prometheus text exposition format.
+  *
+  * Metrics are registered once, up front, and updated from any thread without locking.
+  */
+class Metrics {
+  import Metrics._
+
+  private val metrics = new java.util.concurrent.CopyOnWriteArrayList[Metric]()
+
+  private def register[M <: Metric](metric: M): M = {
+    metrics.add(metric)
+    metric
+  }
+
+  def counter(name: String, help: String): Counter =
+    register(new Counter(name, help))
+
+  def gauge(name: String, help: String)(value: => Double): Gauge =
+    register(new Gauge(name, help, () => value))
+
+  /** A counter whose value is kept somewhere else */
+  def counterFunction(name: String, help: String)(value: => Double): Gauge =
+    register(new Gauge(name, help, () => value, "counter"))
+
+  def histogram(
+    name: String,
+    help: String,
+    labelName: String,
+    labelValues: Seq[String],
+    buckets: Seq[Double] = defaultSecondsBuckets
+  ): Histogram =
+    register(new Histogram(name, help, labelName, labelValues, buckets))
+
+  /** Renders all metrics, plus JVM heap and GC metrics */
+  def render: String = {
+    val sb = new StringBuilder
+    metrics.asScala.foreach(_.render(sb))
+    renderJvm(sb)
+    sb.toString
+  }
+
+  private def renderJvm(sb: StringBuilder): Unit = {
+    val heap = ManagementFactory.getMemoryMXBean.getHeapMemoryUsage
+    header(sb, "jvm_memory_heap_bytes", "Heap memory of the JVM", "gauge")
+    sb ++= s"""jvm_memory_heap_bytes{area="used"} ${heap.getUsed}\n"""
+    sb ++= s"""jvm_memory_heap_bytes{area="committed"} ${heap.getCommitted}\n"""
+    sb ++= s"""jvm_memory_heap_bytes{area="max"} ${heap.getMax}\n"""
+
+    val gcs = ManagementFactory.getGarbageCollectorMXBeans.asScala
+    header(sb, "jvm_gc_collections_total", "Number of garbage collections", "counter")
+    gcs.foreach { gc =>
+      sb ++= s"""jvm_gc_collections_total{gc="${escape(gc.getName)}"} ${gc.getCollectionCount}\n"""
+    }
+    header(sb, "jvm_gc_collection_seconds_total", "Time spent in garbage collection", "counter")
+    gcs.foreach { gc =>
+      sb ++= s"""jvm_gc_collection_seconds_total{gc="${escape(gc.getName)}"} ${gc.getCollectionTime / 1000.0}\n"""
+    }
+  }
+}
+
+object Metrics {
+  val contentType = "text/plain; version=0.0.4; charset=utf-8"
+
+  /** Buckets from 5ms to 5 minutes, good for the stages of a parse */
+  val defaultSecondsBuckets = Seq(0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1.0, 2.5, 5.0, 10.0, 30.0, 60.0, 120.0, 300.0)
+
+  private def escape(labelValue: String) =
+    labelValue.replace("\\", "\\\\").replace("\"", "\\\"").replace("\n", "\\n")
+
+  private def header(sb: StringBuilder, name: String, help: String, metricType: String): Unit = {
+    sb ++= s"# HELP $name $help\n"
+    sb ++= s"# TYPE $name $metricType\n"
+  }
+
+  sealed trait Metric {
+    def render(sb: StringBuilder): Unit
+  }
+
+  class Counter(val name: String, help: String) extends Metric {
+    private val value = new LongAdder()
+
+    def inc(): Unit = value.increment()
+    def get: Long = value.sum()
+
+    override def render(sb: StringBuilder): Unit = {
+      header(sb, name, help, "counter")
+      sb ++= s"$name ${value.sum()}\n"
+    }
+  }
+
+  class Gauge(
+    val name: String,
+    help: String,
+    value: () => Double,
+    metricType: String = "gauge"
+  ) extends Metric {
+    override def render(sb: StringBuilder): Unit = {
+      header(sb, name, help, metricType)
+      sb ++= s"$name ${value()}\n"
+    }
+  }
+
+  /** A histogram with one series per value of a single label */
+  class Histogram(
+    val name: String,
+    help: String,
+    labelName: String,
+    labelValues: Seq[String],
+    buckets: Seq[Double]
+  ) extends Metric {
+    private val upperBounds = buckets.sorted.toArray
+
+    private class Series {
+      val counts = Array.fill(upperBounds.length + 1)(new AtomicLong())
+      val sum = new DoubleAdder()
+    }
+
+    private val series = labelValues.map(_ -> new Series).toMap
+
+    def observe(labelValue: String, value: Double): Unit = {
+      val s = series(labelValue)
+      var i = 0
+      while (i < upperBounds.length && value > upperBounds(i))
+        i += 1
+      s.counts(i).incrementAndGet()
+      s.sum.add(value)
+    }
+
+    override def render(sb: StringBuilder): Unit = {
+      header(sb, name, help, "histogram")
+      labelValues.foreach { labelValue =>
+        val s = series(labelValue)
+        val label = s"""$labelName="${escape(labelValue)}""""
+        var cumulative = 0L
+        upperBounds.indices.foreach { i =>
+          cumulative += s.counts(i).get()
+          sb ++= s"""${name}_bucket{$label,le="${upperBounds(i)}"} $cumulative\n"""
+        }
+        cumulative += s.counts(upperBounds.length).get()
+        sb ++= s"""${name}_bucket{$label,le="+Inf"} $cumulative\n"""
+        sb ++= s"${name}_sum{$label} ${s.sum.sum()}\n"
+        sb ++= s"${name}_count{$label} $cumulative\n"
+      }
+    }
+  }
+}
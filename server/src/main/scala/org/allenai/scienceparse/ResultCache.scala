@@ -0,0 +1,164 @@
+package org.allenai.scienceparse
+
+import java.io._
+import java.nio.file.{ Files, Path, StandardCopyOption }
+import java.util.concurrent.atomic.AtomicLong
+import java.util.zip.{ GZIPInputStream, GZIPOutputStream }
+
+import org.allenai.common.{ Logging, Resource }
+import org.apache.commons.io.IOUtils
+
+import scala.util.control.NonFatal
+
+/** Cache for serialized parse results, keyed by the SHA-1 of the PDF.
+  *
+  * There are two tiers. The memory tier is an LRU map that holds at most maxMemoryBytes of
+  * results. The optional disk tier stores gzipped results in diskDirectory, and is consulted when
+  * the memory tier misses. Results found on disk are promoted into memory.
+  *
+  * @param maxMemoryBytes the maximum size of all results held in memory
+  * @param diskDirectory  where to store results on disk, or None to keep them only in memory
+  * @param modelVersion   identifies the models and settings that produced the results, so that
+  *                       results from other models or settings are never returned
+  */
+class ResultCache(
+  maxMemoryBytes: Long,
+  diskDirectory: Option[File],
+  val modelVersion: String
+) extends Logging {
+  diskDirectory.foreach(_.mkdirs())
+
+  /** @param format everything about the request that changes the bytes we send back */
+  def key(sha: String, format: String): String =
+    s"$sha-$modelVersion-${format.replaceAll("[^A-Za-z0-9_.=,]", "_")}"
+
+  //
+  // Memory tier
+  //
+
+  private var memoryBytes = 0L
+  private val memory = new java.util.LinkedHashMap[String, Array[Byte]](16, 0.75f, true)
+
+  private def getFromMemory(key: String): Option[Array[Byte]] = memory.synchronized {
+    Option(memory.get(key))
+  }
+
+  private def putIntoMemory(key: String, value: Array[Byte]): Unit = {
+    if (value.length > maxMemoryBytes)
+      return
+
+    memory.synchronized {
+      val old = memory.put(key, value)
+      if (old != null)
+        memoryBytes -= old.length
+      memoryBytes += value.length
+
+      val iter = memory.values().iterator()
+      while (memoryBytes > maxMemoryBytes && iter.hasNext) {
+        memoryBytes -= iter.next().length
+        iter.remove()
+      }
+    }
+  }
+
+  //
+  // Disk tier
+  //
+
+  private def diskFile(key: String): Option[Path] = diskDirectory.map { dir =>
+    dir.toPath.resolve(key.take(2)).resolve(s"$key.json.gz")
+  }
+
+  private def getFromDisk(key: String): Option[Array[Byte]] = diskFile(key).filter(Files.isRegularFile(_)).flatMap { file =>
+    try {
+      Some(Resource.using(new GZIPInputStream(Files.newInputStream(file)))(IOUtils.toByteArray))
+    } catch {
+      case NonFatal(e) =>
+        logger.warn(s"Could not read cached result from $file", e)
+        None
+    }
+  }
+
+  private def putOnDisk(key: String, value: Array[Byte]): Unit = diskFile(key).foreach { file =>
+    try {
+      Files.createDirectories(file.getParent)
+      val tempFile = Files.createTempFile(file.getParent, key, ".tmp")
+      try {
+        Resource.using(new GZIPOutputStream(Files.newOutputStream(tempFile))) { os =>
+          os.write(value)
+        }
+        // Atomic, so readers never see a partial file
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING)
+      } finally {
+        Files.deleteIfExists(tempFile)
+      }
+    } catch {
+      case NonFatal(e) =>
+        logger.warn(s"Could not write cached result to $file", e)
+    }
+  }
+
+  //
+  // Public interface
+  //
+
+  private val memoryHitCount = new AtomicLong()
+  private val diskHitCount = new AtomicLong()
+  private val missCount = new AtomicLong()
+
+  def get(key: String): Option[Array[Byte]] = {
+    getFromMemory(key) match {
+      case hit @ Some(_) =>
+        memoryHitCount.incrementAndGet()
+        hit
+      case None =>
+        getFromDisk(key) match {
+          case hit @ Some(value) =>
+            diskHitCount.incrementAndGet()
+            putIntoMemory(key, value)
+            hit
+          case None =>
+            missCount.incrementAndGet()
+            None
+        }
+    }
+  }
+
+  def put(key: String, value: Array[Byte]): Unit = {
+    putIntoMemory(key, value)
+    putOnDisk(key, value)
+  }
+
+  /** Returns the cached value for the key, computing and caching it if necessary */
+  def getOrElseUpdate(key: String)(compute: => Array[Byte]): Array[Byte] =
+    get(key).getOrElse {
+      val value = compute
+      put(key, value)
+      value
+    }
+
+  def memoryHits: Long = memoryHitCount.get()
+  def diskHits: Long = diskHitCount.get()
+  def misses: Long = missCount.get()
+
+  def hitRate: Double = {
+    val hits = memoryHits + diskHits
+    val total = hits + misses
+    if (total == 0) 0.0 else hits.toDouble / total
+  }
+
+  def memoryEntries: Int = memory.synchronized { memory.size() }
+  def memorySizeBytes: Long = memory.synchronized { memoryBytes }
+}
+
+object ResultCache {
+  /** Derives a model version from the model files and from the settings that change the results,
+    * so that cached results become invalid when either of them changes.
+    */
+  def modelVersion(settings: Seq[String], modelFiles: Path*): String = {
+    val description = (settings ++ modelFiles.map { path =>
+      s"${path.toAbsolutePath}:${Files.size(path)}:${Files.getLastModifiedTime(path).toMillis}"
+    }).mkString("\n")
+    Utilities.shaForBytes(description.getBytes("UTF-8")).take(12)
+  }
+}
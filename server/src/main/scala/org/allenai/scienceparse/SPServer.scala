@@ -1,15 +1,19 @@
 package org.allenai.scienceparse
 
-import java.io.{ByteArrayInputStream, File, InputStream}
+import java.io.{ByteArrayInputStream, ByteArrayOutputStream, File, InputStream, OutputStream}
 import java.security.{DigestInputStream, MessageDigest}
-import javax.servlet.http.{HttpServletRequest, HttpServletResponse}
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.{Executors, LinkedBlockingQueue, RejectedExecutionException, Semaphore, ThreadFactory, ThreadPoolExecutor, TimeUnit}
+import javax.servlet.MultipartConfigElement
+import javax.servlet.http.{HttpServletRequest, HttpServletResponse, Part}
 import com.fasterxml.jackson.databind.exc.UnrecognizedPropertyException
 import com.fasterxml.jackson.databind.{JsonMappingException, ObjectMapper}
 import org.allenai.common.{Logging, Resource}
 
 import org.apache.commons.io.IOUtils
-import org.eclipse.jetty.server.{Request, Server}
+import org.eclipse.jetty.server.{Request, Server, ServerConnector}
 import org.eclipse.jetty.server.handler.AbstractHandler
+import org.eclipse.jetty.util.thread.QueuedThreadPool
 import scopt.OptionParser
 
 import scala.util.control.NonFatal
@@ -29,7 +33,17 @@ object SPServer extends Logging {
       paperDirectory: Option[File] = None,
       enableFeedback: Boolean = false,
       useS2Bucket: Boolean = false,
-      downloadModelOnly: Boolean = false
+      downloadModelOnly: Boolean = false,
+      port: Int = 8080,
+      httpThreads: Int = 32,
+      parseThreads: Int = Runtime.getRuntime.availableProcessors(),
+      maxQueuedParses: Int = Runtime.getRuntime.availableProcessors(),
+      cacheMemoryBytes: Long = 256L * 1024 * 1024,
+      cacheDirectory: Option[File] = None,
+      workers: Option[Int] = None,
+      workerHeap: String = "6g",
+      budget: DocumentBudget = DocumentBudget.DEFAULT,
+      gazetteerFalsePositiveRate: Double = 0
     )
 
     val parser = new OptionParser[Config](this.getClass.getSimpleName) {
@@ -63,6 +77,54 @@ object SPServer extends Logging {
         c.copy(downloadModelOnly = true)
       } text "Just downloads all the model files, and then quits"
 
+      opt[Int]("port") action { (p, c) =>
+        c.copy(port = p)
+      } text "Port to listen on. Defaults to 8080"
+
+      opt[Int]("httpThreads") action { (t, c) =>
+        c.copy(httpThreads = t)
+      } text "Maximum number of threads Jetty uses to serve requests. Defaults to 32"
+
+      opt[Int]("parseThreads") action { (t, c) =>
+        c.copy(parseThreads = t)
+      } text "Number of papers to parse at the same time. Defaults to the number of cores"
+
+      opt[Int]("maxQueuedParses") action { (q, c) =>
+        c.copy(maxQueuedParses = q)
+      } text "Number of papers that can wait for a parse thread before we answer with 503. Defaults to the number of cores"
+
+      opt[Long]("cacheMemoryBytes") action { (b, c) =>
+        c.copy(cacheMemoryBytes = b)
+      } text "Size of the in-memory cache of parse results. Set to 0 to disable the cache. Defaults to 256MB"
+
+      opt[File]("cacheDirectory") action { (d, c) =>
+        c.copy(cacheDirectory = Some(d))
+      } text "Directory for the on-disk cache of parse results. If this is not specified, results are cached only in memory."
+
+      opt[Int]("workers") action { (w, c) =>
+        c.copy(workers = Some(w))
+      } text "Parses in this many separate worker processes, so that a bad paper can't crash the server. Each worker needs as much memory as a whole server. Defaults to parsing in the server process."
+
+      opt[String]("workerHeap") action { (h, c) =>
+        c.copy(workerHeap = h)
+      } text "Maximum heap of each worker process, as for -Xmx. Defaults to 6g"
+
+      opt[Long]("maxPdfBytes") action { (b, c) =>
+        c.copy(budget = c.budget.toBuilder.maxBytes(b).build())
+      } text "Rejects PDFs larger than this with 413. Set to 0 to accept any size. Defaults to 100MB"
+
+      opt[Int]("maxPages") action { (p, c) =>
+        c.copy(budget = c.budget.toBuilder.maxPages(p).build())
+      } text "Rejects PDFs with more pages than this with 413. Set to 0 to accept any length. Defaults to 500"
+
+      opt[Long]("pdfMemoryBytes") action { (b, c) =>
+        c.copy(budget = c.budget.toBuilder.maxMainMemoryBytes(b).build())
+      } text "Memory pdfbox may use for each PDF. Beyond that, it uses a temp file. Set to -1 to keep everything in memory. Defaults to 64MB"
+
+      opt[Double]("gazetteerFalsePositiveRate") action { (r, c) =>
+        c.copy(gazetteerFalsePositiveRate = r)
+      } text "Keeps the gazetteer in a Bloom filter with this false positive rate, which takes much less memory. Defaults to 0, which keeps the gazetteer exactly."
+
       help("help") text "Prints help text"
     }
 
@@ -71,13 +133,32 @@ object SPServer extends Logging {
       val modelFile = config.modelFile.map(_.toPath).getOrElse(Parser.getDefaultProductionModel)
       val bibModelFile = config.bibModelFile.map(_.toPath).getOrElse(Parser.getDefaultBibModel)
       val gazetteerFile = config.gazetteerFile.map(_.toPath).getOrElse(Parser.getDefaultGazetteer)
-      val scienceParser = new Parser(modelFile, gazetteerFile, bibModelFile)
-      val end = System.currentTimeMillis()
-      logger.info(s"Loaded science parser in ${end - start}ms")
 
       if(config.downloadModelOnly)
         System.exit(0)
 
+      val backend = config.workers match {
+        case Some(workers) =>
+          new WorkerPool(
+            workers,
+            modelFile,
+            gazetteerFile,
+            bibModelFile,
+            config.workerHeap,
+            budget = config.budget,
+            gazetteerFalsePositiveRate = config.gazetteerFalsePositiveRate)
+        case None =>
+          val scienceParser = new Parser(
+            modelFile.toFile,
+            gazetteerFile.toFile,
+            bibModelFile.toFile,
+            PaperHashSet.forFalsePositiveRate(config.gazetteerFalsePositiveRate))
+          scienceParser.setBudget(config.budget)
+          new ParsingBackend.InProcess(scienceParser)
+      }
+      val end = System.currentTimeMillis()
+      logger.info(s"Loaded science parser in ${end - start}ms")
+
       val paperSource = {
         val defaultSource = if(config.useS2Bucket)
           ScholarBucketPaperSource.getInstance()
@@ -94,9 +175,30 @@ object SPServer extends Logging {
         }
       }
 
-      val server = new Server(8080)
+      val server = new Server(new QueuedThreadPool(config.httpThreads))
+      val connector = new ServerConnector(server)
+      connector.setPort(config.port)
+      server.addConnector(connector)
       server.setAttribute("org.eclipse.jetty.server.Request.maxFormContentSize", 10000000)
-      server.setHandler(new SPServer(paperSource, scienceParser, config.enableFeedback))
+      val resultCache =
+        if (config.cacheMemoryBytes <= 0 && config.cacheDirectory.isEmpty) {
+          None
+        } else {
+          val settings = Seq(
+            s"gazetteerFalsePositiveRate=${config.gazetteerFalsePositiveRate}",
+            s"budget=${config.budget}")
+          val modelVersion = ResultCache.modelVersion(settings, modelFile, bibModelFile, gazetteerFile)
+          Some(new ResultCache(config.cacheMemoryBytes, config.cacheDirectory, modelVersion))
+        }
+
+      server.setHandler(
+        new SPServer(
+          paperSource,
+          backend,
+          config.enableFeedback,
+          config.workers.getOrElse(config.parseThreads),
+          config.maxQueuedParses,
+          resultCache = resultCache))
       server.start()
       server.join()
     }
@@ -105,10 +207,137 @@ object SPServer extends Logging {
 
 class SPServer(
   private val paperSource: PaperSource,
-  private val scienceParser: Parser,
-  enableFeedback: Boolean = true
+  private val backend: ParsingBackend,
+  enableFeedback: Boolean = true,
+  parseThreads: Int = Runtime.getRuntime.availableProcessors(),
+  maxQueuedParses: Int = Runtime.getRuntime.availableProcessors(),
+  retryAfterSeconds: Int = 5,
+  resultCache: Option[ResultCache] = None
 ) extends AbstractHandler with Logging {
 
+  //
+  // Parse worker pool
+  //
+  // Parsing happens on these threads, not on Jetty's. Every parse needs one of the parse slots,
+  // which are sized to the threads plus the queue. When there are none left, single papers get a
+  // 503 instead of piling up in memory, and batches wait for one to free up.
+  //
+
+  private def daemonThreads(name: String) = new ThreadFactory {
+    private val threadCount = new AtomicInteger()
+    override def newThread(r: Runnable): Thread = {
+      val t = new Thread(r, s"SPServer-$name-${threadCount.incrementAndGet()}")
+      t.setDaemon(true)
+      t
+    }
+  }
+
+  private val parseSlots = new Semaphore(parseThreads + math.max(1, maxQueuedParses))
+
+  // The queue is unbounded because parseSlots already bounds it.
+  private val parsePool = new ThreadPoolExecutor(
+    parseThreads,
+    parseThreads,
+    0L,
+    TimeUnit.MILLISECONDS,
+    new LinkedBlockingQueue[Runnable](),
+    daemonThreads("parse"),
+    new ThreadPoolExecutor.AbortPolicy())
+
+  /** Batch requests wait for their papers on these threads, so they don't hold on to Jetty's. */
+  private val batchPool = Executors.newCachedThreadPool(daemonThreads("batch"))
+
+  /** Runs the task on the parse pool if there is a free slot, and returns whether it did */
+  private def tryParse(task: Runnable): Boolean = parseSlots.tryAcquire() && {
+    startParse(task)
+    true
+  }
+
+  /** Runs the task on the parse pool, waiting for a free slot if there is none */
+  private def parse(task: Runnable): Unit = {
+    parseSlots.acquire()
+    startParse(task)
+  }
+
+  private def startParse(task: Runnable): Unit = try {
+    parsePool.execute(new Runnable {
+      override def run(): Unit = try {
+        task.run()
+      } finally {
+        parseSlots.release()
+      }
+    })
+  } catch {
+    case e: RejectedExecutionException => // only happens when we're shutting down
+      parseSlots.release()
+      throw e
+  }
+
+  /** Number of parses waiting for a worker thread */
+  def queuedParses: Int = parsePool.getQueue.size()
+
+  /** Number of parses currently running */
+  def activeParses: Int = parsePool.getActiveCount
+
+  //
+  // Metrics
+  //
+
+  private val metrics = new Metrics()
+
+  private val stageSeconds = metrics.histogram(
+    "scienceparse_parse_stage_seconds",
+    "Time spent in each stage of parsing a paper",
+    "stage",
+    ParseListener.Stage.values().map(_.name.toLowerCase))
+  private val regexTimeouts = metrics.counter(
+    "scienceparse_regex_timeouts_total",
+    "Regular expressions that took too long, leaving parts of the output empty")
+  private val parseTimeouts = metrics.counter(
+    "scienceparse_parse_timeouts_total",
+    "Parses that took too long")
+  private val parseKills = metrics.counter(
+    "scienceparse_parse_kills_total",
+    "Parses that ignored the timeout, and whose threads were stopped")
+  private val rejectedParses = metrics.counter(
+    "scienceparse_rejected_parses_total",
+    "Parses rejected with 503 because the queue was full")
+  metrics.gauge("scienceparse_queued_parses", "Parses waiting for a worker thread")(queuedParses)
+  metrics.gauge("scienceparse_active_parses", "Parses currently running")(activeParses)
+  resultCache.foreach { cache =>
+    metrics.counterFunction("scienceparse_cache_memory_hits_total", "Results found in the memory cache")(cache.memoryHits)
+    metrics.counterFunction("scienceparse_cache_disk_hits_total", "Results found in the disk cache")(cache.diskHits)
+    metrics.counterFunction("scienceparse_cache_misses_total", "Results not found in the cache")(cache.misses)
+    metrics.gauge("scienceparse_cache_memory_bytes", "Size of the results in the memory cache")(cache.memorySizeBytes)
+  }
+
+  backend match {
+    case inProcess: ParsingBackend.InProcess =>
+      inProcess.parser.setListener(new ParseListener {
+        override def stageFinished(stage: ParseListener.Stage, elapsedNanos: Long): Unit =
+          stageSeconds.observe(stage.name.toLowerCase, elapsedNanos / 1e9)
+        override def regexTimedOut(): Unit = regexTimeouts.inc()
+        override def parseTimedOut(): Unit = parseTimeouts.inc()
+        override def parseKilled(): Unit = parseKills.inc()
+      })
+    case pool: WorkerPool =>
+      // Stage timings stay in the workers. What we can see here is how the workers are doing.
+      metrics.counterFunction("scienceparse_worker_restarts_total", "Worker processes that were replaced")(pool.restarts)
+      metrics.counterFunction("scienceparse_poison_documents_total", "Papers that crashed too many workers")(pool.poisonDocuments)
+      metrics.gauge("scienceparse_idle_workers", "Worker processes waiting for a paper")(pool.idleWorkers)
+    case _ =>
+  }
+
+  override protected def doStop(): Unit = {
+    batchPool.shutdown()
+    parsePool.shutdown()
+    backend match {
+      case pool: WorkerPool => pool.close()
+      case _ =>
+    }
+    super.doStop()
+  }
+
   //
   // Request / response stuff
   //
@@ -124,7 +353,9 @@ class SPServer(
 
     inputStream: () => InputStream,
     contentType: String,
-    requestUrl: () => StringBuffer
+    contentLength: Long,
+    requestUrl: () => StringBuffer,
+    parts: () => Seq[Part]
   )
 
   private object SPRequest {
@@ -141,21 +372,40 @@ class SPServer(
         parameterMap,
         request.getInputStream,
         request.getContentType,
-        request.getRequestURL)
+        request.getContentLengthLong,
+        request.getRequestURL,
+        () => {
+          baseRequest.setAttribute(Request.__MULTIPART_CONFIG_ELEMENT, multipartConfig)
+          request.getParts.asScala.toSeq
+        })
     }
+
+    // Parts bigger than a megabyte are buffered on disk rather than in memory.
+    private val multipartConfig = new MultipartConfigElement(
+      System.getProperty("java.io.tmpdir"),
+      -1L,
+      -1L,
+      1024 * 1024)
   }
 
+  /** If streamedContent is set, it is called with the response's output stream after the headers
+    * have been sent, and content is ignored.
+    */
   private case class SPResponse(
     status: Int,
     contentType: String = "",
     content: Array[Byte] = Array.empty,
-    headers: Map[String, String] = Map.empty
+    headers: Map[String, String] = Map.empty,
+    streamedContent: Option[OutputStream => Unit] = None
   )
 
   private object SPResponse {
     def plainText(content: String, status: Int = 200) =
       SPResponse(status, "text/plain;charset=utf-8", content.getBytes("UTF-8"))
 
+    def json(write: OutputStream => Unit) =
+      SPResponse(200, "application/json", streamedContent = Some(write))
+
     lazy val Success = SPResponse(200)
   }
 
@@ -170,11 +420,19 @@ class SPServer(
     def handle(request: SPRequest): Option[SPResponse]
 
     def method: String
+
+    /** Routes that parse papers run on the parse worker pool instead of the Jetty thread. */
+    def parses: Boolean
+
+    /** Routes that hand papers to the parse pool themselves run on the batch pool instead. */
+    def batches: Boolean
   }
 
   private case class StringRoute(
     path: String,
-    method: String = "GET"
+    method: String = "GET",
+    parses: Boolean = false,
+    batches: Boolean = false
   )(
     f: SPRequest => SPResponse
   ) extends Route {
@@ -190,7 +448,9 @@ class SPServer(
 
   private case class RegexRoute(
     regex: Regex,
-    method: String = "GET"
+    method: String = "GET",
+    parses: Boolean = false,
+    batches: Boolean = false
   )(
     f: (SPRequest, Map[String, String]) => SPResponse
   ) extends Route {
@@ -223,11 +483,20 @@ class SPServer(
   private val routes = Seq(
     RegexRoute("^$|^/$".r) { case _ =>
       SPResponse.plainText(
-        "Usage: GET /v1/<paperid>[?format={LabeledData,ExtractedMetadata}]\n" +
-          "format is optional, defaults to LabeledData")
+        "Usage: GET /v1/<paperid>[?format={LabeledData,ExtractedMetadata}][&pretty=true][&trace=true]\n" +
+          "format is optional, defaults to LabeledData\n" +
+          "pretty is optional, defaults to compact output\n" +
+          "trace is optional, and adds per-stage timings to ExtractedMetadata output\n" +
+          "\n" +
+          "       POST /v1/batch[?format={LabeledData,ExtractedMetadata}]\n" +
+          "Body is either multipart with one PDF per part, or a list of paper ids, one per line.\n" +
+          "Returns one line of JSON per paper, in the order in which they finish.")
     },
-    RegexRoute("^/v1/([a-f0-9]{40})$".r("paperId"))(handlePaperId),
-    StringRoute("/v1", "POST")(handlePost)
+    RegexRoute("^/v1/([a-f0-9]{40})$".r("paperId"), parses = true)(handlePaperId),
+    StringRoute("/v1", "POST", parses = true)(handlePost),
+    StringRoute("/v1/batch", "POST", batches = true)(handleBatch),
+    StringRoute("/v1/status")(handleStatus),
+    StringRoute("/metrics")(handleMetrics)
   ) ++ (if(feedbackStore.isDefined) feedbackRoutes else Seq.empty)
 
   override def handle(
@@ -236,94 +505,398 @@ class SPServer(
     request: HttpServletRequest,
     response: HttpServletResponse
   ): Unit = {
+    baseRequest.setHandled(true)
     try {
-      val spResponse = {
-        val spRequest = SPRequest(target, baseRequest, request)
-        // weird construction to make sure it tries one route at a time only
-        routes.iterator.flatMap(_.handle(spRequest)).take(1).toSeq.headOption
-      }.getOrElse {
-        val allowedMethods = routes.filter(_.canHandleTarget(target)).map(_.method).toSet
-        if (allowedMethods.isEmpty) {
-          throw SPServerException(404, "Quoth the server, 404")
-        } else {
-          SPResponse(
-            405,
-            "text/plain;charset=utf-8",
-            "Method not allowed".getBytes("UTF-8"),
-            Map("Allow" -> allowedMethods.mkString(", "))
-          )
-        }
+      val spRequest = SPRequest(target, baseRequest, request)
+      routes.find(_.canHandle(spRequest)) match {
+        case Some(route) if route.parses =>
+          val asyncContext = request.startAsync()
+          // Parses can take a long time. They have their own timeouts in the parser.
+          asyncContext.setTimeout(0)
+          val started = try {
+            tryParse(new Runnable {
+              override def run(): Unit = try {
+                respond(response)(route.handle(spRequest).get)
+              } finally {
+                asyncContext.complete()
+              }
+            })
+          } catch {
+            case _: RejectedExecutionException => false
+          }
+          if (!started) {
+            rejectedParses.inc()
+            try {
+              respond(response)(
+                SPResponse(
+                  503,
+                  "text/plain;charset=utf-8",
+                  "Too many papers in the queue. Try again later.".getBytes("UTF-8"),
+                  Map("Retry-After" -> retryAfterSeconds.toString)))
+            } finally {
+              asyncContext.complete()
+            }
+          }
+        case Some(route) if route.batches =>
+          val asyncContext = request.startAsync()
+          asyncContext.setTimeout(0)
+          try {
+            batchPool.execute(new Runnable {
+              override def run(): Unit = try {
+                respond(response)(route.handle(spRequest).get)
+              } finally {
+                asyncContext.complete()
+              }
+            })
+          } catch {
+            case _: RejectedExecutionException =>
+              try {
+                respondWithError(response, SPServerException(503, "The server is shutting down."))
+              } finally {
+                asyncContext.complete()
+              }
+          }
+        case Some(route) =>
+          respond(response)(route.handle(spRequest).get)
+        case None =>
+          respond(response) {
+            val allowedMethods = routes.filter(_.canHandleTarget(target)).map(_.method).toSet
+            if (allowedMethods.isEmpty) {
+              throw SPServerException(404, "Quoth the server, 404")
+            } else {
+              SPResponse(
+                405,
+                "text/plain;charset=utf-8",
+                "Method not allowed".getBytes("UTF-8"),
+                Map("Allow" -> allowedMethods.mkString(", "))
+              )
+            }
+          }
       }
+    } catch {
+      case e: SPServerException =>
+        respondWithError(response, e)
+      case NonFatal(e) =>
+        logger.warn(s"Uncaught exception: ${e.getMessage}", e)
+        respondWithError(response, SPServerException(500, e.getMessage))
+    }
+  }
 
+  /** Computes the response and writes it, turning exceptions into error responses */
+  private def respond(response: HttpServletResponse)(spResponseFn: => SPResponse): Unit = {
+    try {
+      val spResponse = spResponseFn
       response.setStatus(spResponse.status)
       if (spResponse.contentType.nonEmpty)
         response.setContentType(spResponse.contentType)
       spResponse.headers.foreach { case (k, v) => response.addHeader(k, v) }
-      if (spResponse.content.nonEmpty)
-        response.getOutputStream.write(spResponse.content)
-      baseRequest.setHandled(true)
+      spResponse.streamedContent match {
+        case Some(write) => write(response.getOutputStream)
+        case None if spResponse.content.nonEmpty =>
+          response.getOutputStream.write(spResponse.content)
+        case None => // no content
+      }
     } catch {
       case e: SPServerException =>
-        response.setStatus(e.getStatus)
-        response.setContentType("text/plain;charset=utf-8")
-        response.getWriter.println(e.getMessage)
-        baseRequest.setHandled(true)
+        respondWithError(response, e)
       case NonFatal(e) =>
         logger.warn(s"Uncaught exception: ${e.getMessage}", e)
-        response.setStatus(500)
-        response.setContentType("text/plain;charset=utf-8")
-        response.getWriter.println(e.getMessage)
-        baseRequest.setHandled(true)
+        respondWithError(response, SPServerException(500, e.getMessage))
     }
   }
 
+  private def respondWithError(response: HttpServletResponse, e: SPServerException): Unit = {
+    response.setStatus(e.getStatus)
+    response.setContentType("text/plain;charset=utf-8")
+    response.getWriter.println(e.getMessage)
+  }
+
 
   //
   // Specific handlers
   //
 
+  private def handleMetrics(request: SPRequest) =
+    SPResponse(200, Metrics.contentType, metrics.render.getBytes("UTF-8"))
+
+  private def handleStatus(request: SPRequest) = {
+    val poolStatus = Map[String, JsValue](
+      "parseThreads" -> JsNumber(parseThreads),
+      "activeParses" -> JsNumber(activeParses),
+      "queuedParses" -> JsNumber(queuedParses),
+      "maxQueuedParses" -> JsNumber(maxQueuedParses)
+    )
+    val cacheStatus = resultCache.map { cache =>
+      "cache" -> JsObject(
+        "memoryHits" -> JsNumber(cache.memoryHits),
+        "diskHits" -> JsNumber(cache.diskHits),
+        "misses" -> JsNumber(cache.misses),
+        "hitRate" -> JsNumber(cache.hitRate),
+        "memoryEntries" -> JsNumber(cache.memoryEntries),
+        "memoryBytes" -> JsNumber(cache.memorySizeBytes)
+      )
+    }
+    val status = JsObject(poolStatus ++ cacheStatus.toSeq)
+    SPResponse(200, "application/json", status.compactPrint.getBytes("UTF-8"))
+  }
+
+  /** Reads a query parameter that has to be true or false if it's there at all */
+  private def booleanParam(request: SPRequest, name: String): Boolean =
+    request.queryParams.get(name) match {
+      case None => false
+      case Some(value) if value.equalsIgnoreCase("true") => true
+      case Some(value) if value.equalsIgnoreCase("false") => false
+      case Some(value) => throw SPServerException(400, s"'$name' must be true or false, not '$value'.")
+    }
+
+  private def isPretty(request: SPRequest) = booleanParam(request, "pretty")
+
+  /** Traces are different every time, so traced requests don't go through the cache. */
+  private def isTraced(request: SPRequest, formatString: String) = {
+    val trace = booleanParam(request, "trace")
+    if (trace && formatString != "ExtractedMetadata")
+      throw SPServerException(400, s"'trace' only works with output format 'ExtractedMetadata'.")
+    if (trace && !backend.isInstanceOf[ParsingBackend.InProcess])
+      throw SPServerException(400, s"'trace' does not work when parsing in worker processes.")
+    trace
+  }
+
+  /** Describes everything about a request that changes the bytes of the response */
+  private def formatKey(format: String, skipFields: Set[String], pretty: Boolean) =
+    (Seq(format) ++ skipFields.toSeq.sorted.map("skip=" + _) ++ (if (pretty) Seq("pretty") else Seq.empty)).mkString(",")
+
+  private case class ParseResult(write: OutputStream => Unit, cacheable: Boolean = true)
+
+  /** Returns the cached response for the paper if there is one. Otherwise, it runs the parse, and
+    * caches the output if the parse succeeded.
+    */
+  private def cachedJson(sha: String, format: String)(parse: => ParseResult): SPResponse =
+    resultCache match {
+      case None =>
+        SPResponse.json(parse.write)
+      case Some(cache) =>
+        val key = cache.key(sha, format)
+        cache.get(key) match {
+          case Some(bytes) =>
+            SPResponse(200, "application/json", bytes, Map("X-Cache" -> "HIT"))
+          case None =>
+            SPResponse(200, "application/json", serializeAndCache(cache, key, parse), Map("X-Cache" -> "MISS"))
+        }
+    }
+
+  /** Like cachedJson, but always returns the serialized bytes */
+  private def cachedJsonBytes(sha: String, format: String)(parse: => ParseResult): Array[Byte] =
+    resultCache match {
+      case None =>
+        val buffer = new ByteArrayOutputStream()
+        parse.write(buffer)
+        buffer.toByteArray
+      case Some(cache) =>
+        val key = cache.key(sha, format)
+        cache.get(key).getOrElse(serializeAndCache(cache, key, parse))
+    }
+
+  private def serializeAndCache(cache: ResultCache, key: String, result: ParseResult): Array[Byte] = {
+    val buffer = new ByteArrayOutputStream()
+    result.write(buffer)
+    val bytes = buffer.toByteArray
+    if (result.cacheable)
+      cache.put(key, bytes)
+    bytes
+  }
+
+  private def labeledDataResult(labeledData: LabeledData, pretty: Boolean, skipFields: Set[String] = Set.empty) =
+    ParseResult(JsonStreamWriter.write(labeledData, _, pretty, skipFields))
+
+  /** Reads a whole PDF, and its SHA. Stops reading, and answers with 413, as soon as the PDF is
+    * over the budget, so an oversized PDF never ends up on the heap.
+    */
+  private def readPdf(input: => InputStream): (Array[Byte], String) = try {
+    val digest = MessageDigest.getInstance("SHA-1")
+    val bytes = Resource.using(new DigestInputStream(backend.budget.limit(input), digest))(IOUtils.toByteArray)
+    (bytes, Utilities.toHex(digest.digest()))
+  } catch {
+    case e: DocumentBudget.DocumentTooLargeException => throw SPServerException(413, e.getMessage)
+  }
+
+  /** Answers with 413 right away if the client tells us that the PDF is over the budget */
+  private def checkSize(bytes: Long): Unit = try {
+    if (bytes >= 0)
+      backend.budget.checkBytes(bytes)
+  } catch {
+    case e: DocumentBudget.DocumentTooLargeException => throw SPServerException(413, e.getMessage)
+  }
+
+  private def checkFormat(formatString: String): Unit = formatString match {
+    case "LabeledData" | "ExtractedMetadata" => // fine
+    case _ => throw SPServerException(400, s"Could not understand output format '$formatString'.")
+  }
+
+  private def parsePdf(
+    input: => InputStream,
+    formatString: String,
+    pretty: Boolean,
+    skipFields: Set[String] = Set.empty,
+    trace: Boolean = false
+  ): ParseResult = try {
+    formatString match {
+      case "LabeledData" =>
+        // Failed parses throw, so they never make it into the cache.
+        val (bytes, sha) = readPdf(input)
+        labeledDataResult(LabeledPapersFromScienceParse.parse(bytes, sha, backend), pretty, skipFields)
+      case "ExtractedMetadata" =>
+        val parseTrace = if (trace) new ParseTrace() else ParseTrace.DISABLED
+        val em = backend.parse(readPdf(input)._1, parseTrace)
+        ParseResult(JsonStreamWriter.write(em, _, pretty), cacheable = !trace)
+    }
+  } catch {
+    case e: WorkerPool.PoisonDocumentException => throw SPServerException(422, e.getMessage)
+    case e: DocumentBudget.DocumentTooLargeException => throw SPServerException(413, e.getMessage)
+  }
+
   private def handlePaperId(request: SPRequest, regexGroups: Map[String, String]) = {
     val paperId = regexGroups("paperId")
     val formatString = request.queryParams.getOrElse("format", "LabeledData")
     val skipFields = request.queryParams.getOrElse("skipFields", "").split(",").map(_.trim).filter(_.nonEmpty).toSet
-    val content = formatString match {
-      case "LabeledData" =>
-        val labeledDataJson =
-          LabeledPapersFromScienceParse.get(paperSource.getPdf(paperId), scienceParser).labels.toJson
-        val strippedFields = skipFields.foldLeft(labeledDataJson.asJsObject.fields) {
-          case (fields, skipField) =>
-            fields - skipField
-          }
-        JsObject(strippedFields)
-      case "ExtractedMetadata" if skipFields.isEmpty =>
-        scienceParser.doParse(paperSource.getPdf(paperId)).toJson
-      case "ExtractedMetadata" if skipFields.nonEmpty =>
-        throw SPServerException(400, s"'skipFields' only works with output format 'LabeledData'.")
-      case _ =>
-        throw SPServerException(400, s"Could not understand output format '$formatString'.")
+    val pretty = isPretty(request)
+    checkFormat(formatString)
+    if (formatString == "ExtractedMetadata" && skipFields.nonEmpty)
+      throw SPServerException(400, s"'skipFields' only works with output format 'LabeledData'.")
+
+    if (isTraced(request, formatString)) {
+      SPResponse.json(parsePdf(paperSource.getPdf(paperId), formatString, pretty, trace = true).write)
+    } else {
+      cachedJson(paperId, formatKey(formatString, skipFields, pretty)) {
+        parsePdf(paperSource.getPdf(paperId), formatString, pretty, skipFields)
+      }
     }
-    SPResponse(200, "application/json", content.prettyPrint.getBytes("UTF-8"))
   }
 
   private def handlePost(request: SPRequest) = {
-    // calculate SHA of paper
-    val digest = MessageDigest.getInstance("SHA-1")
-    digest.reset()
-    val bytes = Resource.using(new DigestInputStream(request.inputStream(), digest))(IOUtils.toByteArray)
+    val formatString = request.queryParams.getOrElse("format", "LabeledData")
+    val pretty = isPretty(request)
+    checkFormat(formatString)
+    val trace = isTraced(request, formatString)
+
+    checkSize(request.contentLength)
+    val (bytes, sha) = readPdf(request.inputStream())
 
     // parse paper
+    if (trace) {
+      SPResponse.json(parsePdf(new ByteArrayInputStream(bytes), formatString, pretty, trace = true).write)
+    } else {
+      cachedJson(sha, formatKey(formatString, Set.empty, pretty)) {
+        parsePdf(new ByteArrayInputStream(bytes), formatString, pretty)
+      }
+    }
+  }
+
+  /** One paper in a batch request. id is what we report back to the client. */
+  private case class BatchItem(id: String, result: () => Array[Byte])
+
+  private def handleBatch(request: SPRequest) = {
     val formatString = request.queryParams.getOrElse("format", "LabeledData")
-    val content = formatString match {
-      case "LabeledData" =>
-        LabeledPapersFromScienceParse.get(
-          new ByteArrayInputStream(bytes), scienceParser).labels.toJson
-      case "ExtractedMetadata" =>
-        scienceParser.doParse(new ByteArrayInputStream(bytes)).toJson
-      case _ =>
-        throw SPServerException(400, s"Could not understand output format '$formatString'.")
+    checkFormat(formatString)
+    val format = formatKey(formatString, Set.empty, pretty = false)
+
+    val items = if (Option(request.contentType).exists(_.startsWith("multipart/"))) {
+      request.parts().map { part =>
+        val id = Option(part.getSubmittedFileName).getOrElse(part.getName)
+        BatchItem(id, () => {
+          checkSize(part.getSize)
+          val (bytes, sha) = readPdf(part.getInputStream)
+          cachedJsonBytes(sha, format) {
+            parsePdf(new ByteArrayInputStream(bytes), formatString, pretty = false)
+          }
+        })
+      }
+    } else {
+      val paperIdRegex = "^[a-f0-9]{40}$".r
+      val paperIds = Resource.using(request.inputStream()) { is =>
+        IOUtils.readLines(is, "UTF-8").asScala.map(_.trim).filter(_.nonEmpty)
+      }
+      paperIds.map { paperId =>
+        BatchItem(paperId, () => {
+          if (paperIdRegex.findFirstIn(paperId).isEmpty)
+            throw SPServerException(400, s"'$paperId' is not a paper id")
+          cachedJsonBytes(paperId, format) {
+            parsePdf(paperSource.getPdf(paperId), formatString, pretty = false)
+          }
+        })
+      }
     }
 
-    SPResponse(200, "application/json", content.prettyPrint.getBytes("UTF-8"))
+    SPResponse(
+      200,
+      "application/x-ndjson",
+      streamedContent = Some { os =>
+        def writeLine(id: String, result: Either[SPServerException, Array[Byte]]): Unit = {
+          val gen = JsonStreamWriter.generator(os)
+          gen.writeStartObject()
+          gen.writeStringField("id", id)
+          result match {
+            case Right(bytes) =>
+              gen.writeFieldName("result")
+              gen.writeRawValue(new String(bytes, "UTF-8"))
+            case Left(e) =>
+              gen.writeObjectFieldStart("error")
+              gen.writeNumberField("status", e.getStatus)
+              gen.writeStringField("message", e.getMessage)
+              gen.writeEndObject()
+          }
+          gen.writeEndObject()
+          gen.writeRaw('\n')
+          gen.close()
+          os.flush()
+        }
+
+        // We keep at most parseThreads papers of this batch in the pool at a time, so that one big
+        // batch does not crowd out all other requests. When the pool is full, we wait for a free
+        // slot instead of failing the paper.
+        val finished = new LinkedBlockingQueue[(String, Either[SPServerException, Array[Byte]])]()
+        val pending = items.iterator
+        var inFlight = 0
+        while (pending.hasNext || inFlight > 0) {
+          while (inFlight < parseThreads && pending.hasNext) {
+            val item = pending.next()
+            try {
+              parse(new Runnable {
+                override def run(): Unit = {
+                  // Stays like this only if a fatal error gets through. The loop below waits for
+                  // every item, so every item has to post a result.
+                  var result: Either[SPServerException, Array[Byte]] =
+                    Left(SPServerException(500, s"Parsing ${item.id} failed"))
+                  try {
+                    result = try {
+                      Right(item.result())
+                    } catch {
+                      case e: SPServerException => Left(e)
+                      case NonFatal(e) =>
+                        logger.warn(s"Uncaught exception while parsing ${item.id}: ${e.getMessage}", e)
+                        Left(SPServerException(500, e.getMessage))
+                    }
+                  } finally {
+                    finished.put((item.id, result))
+                  }
+                }
+              })
+              inFlight += 1
+            } catch {
+              case _: RejectedExecutionException =>
+                // The server is shutting down, so none of the remaining items will be parsed.
+                val shuttingDown = Left(SPServerException(503, "The server is shutting down."))
+                writeLine(item.id, shuttingDown)
+                pending.foreach(remaining => writeLine(remaining.id, shuttingDown))
+            }
+          }
+
+          if (inFlight > 0) {
+            val (id, result) = finished.take()
+            inFlight -= 1
+            writeLine(id, result)
+          }
+        }
+      })
   }
 
   private val feedbackUnavailableException =